@@ -2,6 +2,12 @@ package edu.cwru.sepia.agent;
 
 import edu.cwru.sepia.action.Action;
 import edu.cwru.sepia.agent.Agent;
+import edu.cwru.sepia.agent.grid.AttackPositionSearch;
+import edu.cwru.sepia.agent.grid.CellLayer;
+import edu.cwru.sepia.agent.grid.Grid;
+import edu.cwru.sepia.agent.grid.MapLocation;
+import edu.cwru.sepia.agent.grid.Options;
+import edu.cwru.sepia.agent.grid.WorldDiff;
 import edu.cwru.sepia.environment.model.history.History;
 import edu.cwru.sepia.environment.model.state.ResourceNode;
 import edu.cwru.sepia.environment.model.state.State;
@@ -17,47 +23,110 @@ public class AstarAgent extends Agent {
 	private static final long serialVersionUID = 1L;
 
 	
-	class MapLocation {
-        public int x, y;
-        public MapLocation cameFrom;
-		private int estimateCost;
-		private int actualCost;
-
-		
-		public MapLocation(int x, int y, MapLocation cameFrom, int estimateCost) {
+	/*
+	 * A location reached by the A* search, with the node it was reached from and its costs
+	 */
+	static final class SearchNode {
+		final MapLocation location;
+		final SearchNode cameFrom;
+		private final int estimateCost;
+		private final int actualCost;
+
+		SearchNode(MapLocation location, SearchNode cameFrom, int estimateCost) {
+			this.location = location;
 			this.cameFrom = cameFrom;
-			if(cameFrom != null) {
-				actualCost = cameFrom.actualCost + 1;
-			}
-			else {
-				actualCost = 0;
-			}
+			this.actualCost = cameFrom == null ? 0 : cameFrom.actualCost + 1;
 			this.estimateCost = estimateCost;
-			this.x = x;
-            this.y = y;
 		}
 
-		
 		public int getEstimateCost() {
 			return this.estimateCost;
 		}
-		
+
 		public int getActualCost() {
 			return this.actualCost;
 		}
-		
-    }
+	}
 
     Stack<MapLocation> path;
-    int footmanID, townhallID, enemyFootmanID;
+    int footmanID, townhallID, enemyFootmanID, enemyPlayerNum;
     MapLocation nextLoc;
 
+    /*
+     * Geometry of the map, built once per episode in initialStep and shared by every search and replan
+     */
+    private transient Grid grid;
+
+    /*
+     * Multi-target mode, turned on by the "multiTarget" argument: instead of the townhall, the footman attacks
+     * whichever enemy unit is cheapest to reach, found by one AttackPositionSearch over all of them. The
+     * cost of a target is the steps to it plus hpWeight times its HP. targetID is the unit being attacked,
+     * always the townhall when the mode is off. targetChanged is set when the target moves or dies, so the
+     * footman replans towards its next target
+     */
+    private final boolean multiTarget;
+    private final double hpWeight;
+    private transient AttackPositionSearch attackSearch;
+    int targetID;
+    private boolean targetChanged = false;
+
     private long totalPlanTime = 0; // nsecs
     private long totalExecutionTime = 0; //nsecs
 
+    /*
+     * Changes between turns, reported by worldDiff. resourceLocations is kept up to date from the removed
+     * resources instead of being read again for every plan. pathBlocked is set when the enemy footman steps
+     * onto the rest of the path, worldOpened when a tree or the enemy footman disappears and a shorter path
+     * may exist
+     */
+    private final transient WorldDiff worldDiff = new WorldDiff();
+    private Set<MapLocation> resourceLocations;
+    private boolean pathBlocked = false;
+    private boolean worldOpened = false;
+
     public AstarAgent(int playernum) {
+        this(playernum, new String[0]);
+    }
+
+    public AstarAgent(int playernum, String[] args) {
         super(playernum);
 
+        Map<String, String> options = Options.parse(args, 0);
+        multiTarget = options.containsKey("multiTarget");
+        hpWeight = Double.parseDouble(options.getOrDefault("hpWeight", "0"));
+
+        worldDiff.addListener(new WorldDiff.Listener() {
+            @Override
+            public void unitMoved(int unitID, int fromX, int fromY, int toX, int toY) {
+                //nextLoc has already been popped from the path, but it is still ahead of the footman
+                MapLocation to = new MapLocation(toX, toY);
+                if(unitID == enemyFootmanID && (to.equals(nextLoc) || path != null && path.contains(to))) {
+                    pathBlocked = true;
+                }
+                if(unitID == targetID) {
+                    targetChanged = true;
+                }
+            }
+
+            @Override
+            public void unitDied(int unitID, int x, int y) {
+                if(unitID == enemyFootmanID) {
+                    worldOpened = true;
+                }
+                if(unitID == targetID && unitID != townhallID) {
+                    targetChanged = true;
+                }
+            }
+
+            @Override
+            public void resourceRemoved(int resourceID, int x, int y) {
+                if(resourceLocations != null) {
+                    resourceLocations.remove(new MapLocation(x, y));
+                }
+                worldOpened = true;
+            }
+        });
+
         System.out.println("Constructed AstarAgent");
     }
 
@@ -83,7 +152,7 @@ public class AstarAgent extends Agent {
 
         // find the enemy playernum
         Integer[] playerNums = newstate.getPlayerNumbers();
-        int enemyPlayerNum = -1;
+        enemyPlayerNum = -1;
         for(Integer playerNum : playerNums)
         {
             if(playerNum != playernum) {
@@ -132,6 +201,16 @@ public class AstarAgent extends Agent {
             return null;
         }
 
+        worldDiff.reset();
+        worldDiff.update(newstate);
+        resourceLocations = null;
+        targetID = townhallID;
+        if(grid == null || grid.getWidth() != newstate.getXExtent() || grid.getHeight() != newstate.getYExtent()) {
+            grid = new Grid(newstate.getXExtent(), newstate.getYExtent());
+        }
+        if(multiTarget) {
+            attackSearch = new AttackPositionSearch(grid, true, newstate.getUnit(footmanID).getTemplateView().getRange());
+        }
         long startTime = System.nanoTime();
         path = findPath(newstate);
         totalPlanTime += System.nanoTime() - startTime;
@@ -149,10 +228,17 @@ public class AstarAgent extends Agent {
         if(shouldReplanPath(newstate, statehistory, path)) {
             long planStartTime = System.nanoTime();
             path = findPath(newstate);
+            nextLoc = null;
             planTime = System.nanoTime() - planStartTime;
             totalPlanTime += planTime;
         }
 
+        // no path to the target, wait and plan again next turn
+        if(path == null) {
+            totalExecutionTime += System.nanoTime() - startTime - planTime;
+            return actions;
+        }
+
         Unit.UnitView footmanUnit = newstate.getUnit(footmanID);
 
         int footmanX = footmanUnit.getXPosition();
@@ -174,26 +260,26 @@ public class AstarAgent extends Agent {
             Direction nextDirection = getNextDirection(xDiff, yDiff);
             actions.put(footmanID, Action.createPrimitiveMove(footmanID, nextDirection));
         } else {
-            Unit.UnitView townhallUnit = newstate.getUnit(townhallID);
+            Unit.UnitView targetUnit = newstate.getUnit(targetID);
 
             // if townhall was destroyed on the last turn
-            if(townhallUnit == null) {
+            if(targetUnit == null) {
                 terminalStep(newstate, statehistory);
                 return actions;
             }
-            System.out.println(Math.abs(footmanX - townhallUnit.getXPosition()));
-            System.out.println(Math.abs(footmanY - townhallUnit.getYPosition()));
-            if(Math.abs(footmanX - townhallUnit.getXPosition()) > 1 ||
-                    Math.abs(footmanY - townhallUnit.getYPosition()) > 1)
+            System.out.println(Math.abs(footmanX - targetUnit.getXPosition()));
+            System.out.println(Math.abs(footmanY - targetUnit.getYPosition()));
+            if(Math.abs(footmanX - targetUnit.getXPosition()) > 1 ||
+                    Math.abs(footmanY - targetUnit.getYPosition()) > 1)
             {
-                System.err.println("Invalid plan. Cannot attack townhall");
+                System.err.println("Invalid plan. Cannot attack " + targetUnit.getTemplateView().getName());
                 totalExecutionTime += System.nanoTime() - startTime - planTime;
                 return actions;
             }
             else {
-                System.out.println("Attacking TownHall");
+                System.out.println("Attacking " + targetUnit.getTemplateView().getName());
                 // if no more movements in the planned path then attack
-                actions.put(footmanID, Action.createPrimitiveAttack(footmanID, townhallID));
+                actions.put(footmanID, Action.createPrimitiveAttack(footmanID, targetID));
             }
         }
 
@@ -209,6 +295,13 @@ public class AstarAgent extends Agent {
         System.out.println("Total time: " + (totalExecutionTime + totalPlanTime)/1e9);
     }
 
+    /*
+     * Total time spent in findPath over the episode, in nanoseconds
+     */
+    public long getTotalPlanTime() {
+        return totalPlanTime;
+    }
+
     @Override
     public void savePlayerData(OutputStream os) {
 
@@ -238,7 +331,13 @@ public class AstarAgent extends Agent {
      */
     private boolean shouldReplanPath(State.StateView state, History.HistoryView history, Stack<MapLocation> currentPath)
     {
-        return false;
+        //Only the changes since the last turn are looked at, see the worldDiff listener. A plan that failed
+        //is tried again every turn
+        pathBlocked = false;
+        worldOpened = false;
+        targetChanged = false;
+        worldDiff.update(state);
+        return currentPath == null || pathBlocked || worldOpened || targetChanged;
     }
 
     /**
@@ -250,30 +349,80 @@ public class AstarAgent extends Agent {
      */
     private Stack<MapLocation> findPath(State.StateView state)
     {
+        if(multiTarget) {
+            return findAttackPath(state);
+        }
         Unit.UnitView townhallUnit = state.getUnit(townhallID);
         Unit.UnitView footmanUnit = state.getUnit(footmanID);
 
-        MapLocation startLoc = new MapLocation(footmanUnit.getXPosition(), footmanUnit.getYPosition(), null, 0);
+        MapLocation startLoc = new MapLocation(footmanUnit.getXPosition(), footmanUnit.getYPosition());
 
-        MapLocation goalLoc = new MapLocation(townhallUnit.getXPosition(), townhallUnit.getYPosition(), null, 0);
+        MapLocation goalLoc = new MapLocation(townhallUnit.getXPosition(), townhallUnit.getYPosition());
 
         MapLocation footmanLoc = null;
         if(enemyFootmanID != -1) {
             Unit.UnitView enemyFootmanUnit = state.getUnit(enemyFootmanID);
-            footmanLoc = new MapLocation(enemyFootmanUnit.getXPosition(), enemyFootmanUnit.getYPosition(), null, 0);
+            footmanLoc = new MapLocation(enemyFootmanUnit.getXPosition(), enemyFootmanUnit.getYPosition());
         }
 
-        // get resource locations
-        List<Integer> resourceIDs = state.getAllResourceIds();
-        Set<MapLocation> resourceLocations = new HashSet<MapLocation>();
-        for(Integer resourceID : resourceIDs)
-        {
-            ResourceNode.ResourceView resource = state.getResourceNode(resourceID);
+        return AstarSearch(startLoc, goalLoc, state.getXExtent(), state.getYExtent(), footmanLoc, getResourceLocations(state));
+    }
+
+    /*
+     * The resource locations, read once per episode and then kept up to date by worldDiff
+     */
+    private Set<MapLocation> getResourceLocations(State.StateView state)
+    {
+        if(resourceLocations == null) {
+            List<Integer> resourceIDs = state.getAllResourceIds();
+            resourceLocations = new HashSet<MapLocation>();
+            for(Integer resourceID : resourceIDs)
+            {
+                ResourceNode.ResourceView resource = state.getResourceNode(resourceID);
 
-            resourceLocations.add(new MapLocation(resource.getXPosition(), resource.getYPosition(), null, 0));
+                resourceLocations.add(new MapLocation(resource.getXPosition(), resource.getYPosition()));
+            }
         }
+        return resourceLocations;
+    }
 
-        return AstarSearch(startLoc, goalLoc, state.getXExtent(), state.getYExtent(), footmanLoc, resourceLocations);
+    /*
+     * Multi-target planning: every living enemy unit is a target and blocks the footman, and the cells next to
+     * them are the goals. As in GameState, the townhall can be attacked diagonally and the other units only
+     * from the side. One search finds the cheapest goal over all targets, which becomes targetID
+     */
+    private Stack<MapLocation> findAttackPath(State.StateView state)
+    {
+        Unit.UnitView footmanUnit = state.getUnit(footmanID);
+
+        CellLayer blocked = new CellLayer(grid);
+        for(MapLocation resource : getResourceLocations(state)) {
+            blocked.set(grid.cell(resource.x, resource.y));
+        }
+        List<Integer> enemyUnitIDs = state.getUnitIds(enemyPlayerNum);
+        int[] targets = new int[enemyUnitIDs.size()];
+        boolean[] diagonalReach = new boolean[enemyUnitIDs.size()];
+        double[] weights = new double[enemyUnitIDs.size()];
+        for(int i = 0; i < targets.length; i++) {
+            Unit.UnitView enemyUnit = state.getUnit(enemyUnitIDs.get(i));
+            targets[i] = grid.cell(enemyUnit.getXPosition(), enemyUnit.getYPosition());
+            diagonalReach[i] = enemyUnit.getTemplateView().getName().equalsIgnoreCase("townhall");
+            weights[i] = hpWeight * enemyUnit.getHP();
+            blocked.set(targets[i]);
+        }
+
+        AttackPositionSearch.Result result = attackSearch.search(grid.cell(footmanUnit.getXPosition(), footmanUnit.getYPosition()),
+                blocked, targets, diagonalReach, weights);
+        if(result == null) {
+            System.out.println("Path not found.");
+            return null;
+        }
+        targetID = enemyUnitIDs.get(result.target);
+        Stack<MapLocation> pathStack = new Stack<MapLocation>();
+        for(int i = result.path.length - 1; i >= 0; i--) {
+            pathStack.push(new MapLocation(grid.x(result.path[i]), grid.y(result.path[i])));
+        }
+        return pathStack;
     }
     /**
      * This is the method you will implement for the assignment. Your implementation
@@ -333,62 +482,47 @@ public class AstarAgent extends Agent {
 		 * 4. Don't add the location you don't expand
 		 */
    
-    	/**
-    	 * Initialize the map.
-    	 * 
-    	 * switch (map[x][y]) {
-    	 * 	 case 0: 'empty'
-    	 *   case 1: 'goal'
-    	 *   case 2: 'enemy'
-    	 *   case 3: 'resource'
-    	 * }
+    	/*
+    	 * The trees and the enemy footman block the search, every other cell of the map is open. The grid of the
+    	 * episode is reused, unless the search is asked about a map of another size
     	 */
-    	int[][] map = new int[xExtent][yExtent];//create a new map that uses x and y
-    	int[][] estimateCost = new int[xExtent][yExtent];
-    	map[goal.x][goal.y] = 1;
-    	if (enemyFootmanLoc != null) {
-    		map[enemyFootmanLoc.x][enemyFootmanLoc.y] = 2;//This is a space that the footman has an obstacle
+    	if(grid == null || grid.getWidth() != xExtent || grid.getHeight() != yExtent) {
+    		grid = new Grid(xExtent, yExtent);
     	}
+    	CellLayer blocked = new CellLayer(grid);
     	for (MapLocation resource : resourceLocations) {
-    		map[resource.x][resource.y] = 3;//This is a space that the footman cannot go
+    		blocked.set(grid.cell(resource.x, resource.y));
+    	}
+    	if (enemyFootmanLoc != null) {
+    		blocked.set(grid.cell(enemyFootmanLoc.x, enemyFootmanLoc.y));
     	}
-    	// Define the boolean for where the footman visited, putting it into the closed list
-		boolean[][] visited = new boolean[xExtent][yExtent];
-		visited[start.x][start.y] = true;
-    	for(int i = 0; i < xExtent; i ++) {
-    		for(int j = 0; j < yExtent; j ++) {
-    			estimateCost[i][j] = heuristic(map, i, j);
-    		}
+    	int goalCell = grid.cell(goal.x, goal.y);
+    	// Define the closed list: the cells the footman already expanded
+		CellLayer visited = new CellLayer(grid);
+		visited.set(grid.cell(start.x, start.y));
+		int[] estimateCost = new int[grid.size()];
+    	for(int cell = 0; cell < grid.size(); cell++) {
+    		estimateCost[cell] = heuristic(grid, cell, goalCell);
     	}
 
 
-		Queue<MapLocation> q = new PriorityQueue<>(10, (n1, n2) -> (n1.getEstimateCost() + n1.getActualCost()- n2.getEstimateCost() - n2.getActualCost())); //Creating a priorityqueue so that it stores the map location visited
-		MapLocation currentLoc = start;
-		q.add(currentLoc); 
+		Queue<SearchNode> q = new PriorityQueue<>(10, (n1, n2) -> (n1.getEstimateCost() + n1.getActualCost()- n2.getEstimateCost() - n2.getActualCost())); //Creating a priorityqueue so that it stores the map location visited
+		SearchNode currentNode = new SearchNode(start, null, 0);
+		q.add(currentNode); 
 		while(!q.isEmpty()) {
-			currentLoc = q.poll();//The current location in the queue
-
-			visited[currentLoc.x][currentLoc.y] = true; //Checks Current Location
-
-			for(int dx = -1; dx < 2; dx++) { //This for loop is so that the footman moves and creates a new map location
-				for (int dy = -1; dy < 2; dy++) {
-					int nextX = dx + currentLoc.x;
-					int nextY = dy + currentLoc.y;
-					if (nextX >= 0 && nextX < xExtent &&
-						nextY >= 0 && nextY < yExtent &&
-						map[nextX][nextY] != 2 &&
-						map[nextX][nextY] != 3 &&
-						!visited[nextX][nextY] 
-						) 
-					{
-						MapLocation newLoc = new MapLocation(nextX, nextY, currentLoc, estimateCost[nextX][nextY]);
-						
-						// return the path when reach goal state.
-						if (map[nextX][nextY] == 1) {
-							return generateStack(currentLoc);
-						}
-						q.add(newLoc);
+			currentNode = q.poll();//The current location in the queue
+			int currentCell = grid.cell(currentNode.location.x, currentNode.location.y);
+
+			visited.set(currentCell); //Checks Current Location
+
+			for(int d = 0; d < Grid.DIRECTIONS_8; d++) { //The footman moves in 8 directions
+				int nextCell = grid.neighbor8(currentCell, d);
+				if (nextCell != Grid.NONE && !blocked.get(nextCell) && !visited.get(nextCell)) {
+					// return the path when reach goal state.
+					if (nextCell == goalCell) {
+						return generateStack(currentNode);
 					}
+					q.add(new SearchNode(new MapLocation(grid.x(nextCell), grid.y(nextCell)), currentNode, estimateCost[nextCell]));
 				}
 			}
 		}
@@ -403,17 +537,17 @@ public class AstarAgent extends Agent {
     }
     */
     
-    Stack<MapLocation> generateStack(MapLocation currentLoc) {
+    Stack<MapLocation> generateStack(SearchNode currentNode) {
     	Stack<MapLocation> pathStack = new Stack<MapLocation>(); //Initialize the stack
-    	while (currentLoc.cameFrom != null) {
-    		pathStack.add(currentLoc);
-    		currentLoc = currentLoc.cameFrom;
+    	while (currentNode.cameFrom != null) {
+    		pathStack.add(currentNode.location);
+    		currentNode = currentNode.cameFrom;
     	}
     		return pathStack; // We don't want to add the starting point
     }
     
     // heuristic function to implement
-    int heuristic(int[][] map, int x, int y) {
+    int heuristic(Grid grid, int cell, int goalCell) {
     		return 0;
     }
     
@@ -0,0 +1,86 @@
+package edu.cwru.sepia.agent.minimax;
+
+import edu.cwru.sepia.action.Action;
+import edu.cwru.sepia.util.Direction;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Interned primitive actions, so that generating children does not allocate a new SEPIA Action for
+ * every move of every node.
+ *
+ * There is one Action per (unit, direction) and one per (unit, target). They are created on first use
+ * and then shared by every search and every thread, so they must never be modified.
+ */
+public final class ActionCache {
+
+	/*
+	 * Unit IDs are small and dense in SEPIA, so the actions are kept in tables indexed by the unit ID: a row of
+	 * one action per direction ordinal for moves, and a row indexed by the target ID for attacks, grown when a
+	 * larger target ID comes up. A lookup allocates nothing once the action exists. Units with an ID outside
+	 * the tables get a new Action every time.
+	 */
+	private static final int MAX_CACHED_ID = 1 << 14;
+	private static final int DIRECTIONS = Direction.values().length;
+
+	private static final AtomicReferenceArray<AtomicReferenceArray<Action>> MOVES = new AtomicReferenceArray<>(MAX_CACHED_ID);
+	private static final AtomicReferenceArray<AtomicReferenceArray<Action>> ATTACKS = new AtomicReferenceArray<>(MAX_CACHED_ID);
+
+	private ActionCache() {
+	}
+
+	/**
+	 * The primitive move of the unit in the given direction
+	 */
+	public static Action move(int unitID, Direction direction) {
+		if(unitID < 0 || unitID >= MAX_CACHED_ID) {
+			return Action.createPrimitiveMove(unitID, direction);
+		}
+		AtomicReferenceArray<Action> row = row(MOVES, unitID, DIRECTIONS);
+		Action action = row.get(direction.ordinal());
+		if(action == null) {
+			row.compareAndSet(direction.ordinal(), null, Action.createPrimitiveMove(unitID, direction));
+			action = row.get(direction.ordinal());
+		}
+		return action;
+	}
+
+	/**
+	 * The primitive attack of the unit on the target
+	 */
+	public static Action attack(int unitID, int targetID) {
+		if(unitID < 0 || unitID >= MAX_CACHED_ID || targetID < 0 || targetID >= MAX_CACHED_ID) {
+			return Action.createPrimitiveAttack(unitID, targetID);
+		}
+		AtomicReferenceArray<Action> row = row(ATTACKS, unitID, targetID + 1);
+		Action action = row.get(targetID);
+		if(action == null) {
+			row.compareAndSet(targetID, null, Action.createPrimitiveAttack(unitID, targetID));
+			action = row.get(targetID);
+		}
+		return action;
+	}
+
+	/*
+	 * The row of the unit, replaced by a copy of at least the given length if it is shorter. A thread that
+	 * loses the race to replace a row uses the winner's, and an action stored in a row while it is being
+	 * copied may be dropped and created again later, which is harmless
+	 */
+	private static AtomicReferenceArray<Action> row(AtomicReferenceArray<AtomicReferenceArray<Action>> table, int unitID, int length) {
+		AtomicReferenceArray<Action> row = table.get(unitID);
+		while(row == null || row.length() < length) {
+			int newLength = row == null ? length : Math.min(MAX_CACHED_ID, Math.max(length, 2 * row.length()));
+			AtomicReferenceArray<Action> grown = new AtomicReferenceArray<>(newLength);
+			for(int i = 0; row != null && i < row.length(); i++) {
+				grown.set(i, row.get(i));
+			}
+			if(table.compareAndSet(unitID, row, grown)) {
+				row = grown;
+			}
+			else {
+				row = table.get(unitID);
+			}
+		}
+		return row;
+	}
+}
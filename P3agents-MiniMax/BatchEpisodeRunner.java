@@ -0,0 +1,309 @@
+package edu.cwru.sepia.agent.minimax;
+
+import edu.cwru.sepia.action.Action;
+import edu.cwru.sepia.action.DirectedAction;
+import edu.cwru.sepia.action.TargetedAction;
+import edu.cwru.sepia.agent.Agent;
+import edu.cwru.sepia.agent.AstarAgent;
+import edu.cwru.sepia.agent.grid.Options;
+import edu.cwru.sepia.environment.model.state.ResourceNode;
+import edu.cwru.sepia.environment.model.state.State;
+import edu.cwru.sepia.environment.model.state.Unit;
+import edu.cwru.sepia.environment.model.state.UnitTemplate;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Plays many MinimaxAlphaBeta or AstarAgent episodes in parallel, without the SEPIA engine loop.
+ *
+ * Every episode runs on a HeadlessSimulator loaded from a map description. Each turn the simulator is
+ * turned into a SEPIA State built in-process, whose StateView is given to the agent, and the agent's
+ * actions are applied back to the simulator. The archers are played by the simulator's random policy,
+ * seeded per episode. Episodes run on a fixed pool of threads, one agent instance per episode.
+ *
+ * Results are written to one columnar text file: one line per column, the column name followed by one
+ * tab separated value per episode.
+ *
+ * Usage: BatchEpisodeRunner name=value ...
+ *   agent=minimax|astar       the agent to play (default minimax)
+ *   agentArgs="4 maxActions=3" the agent's arguments, space separated (default "2"), e.g. "multiTarget" for astar
+ *   maps=a.txt,b.txt          the map description files
+ *   seeds=N                   number of seeds per map (default 10)
+ *   threads=N                 pool size (default: available processors)
+ *   maxTurns=N                turn limit per episode (default 500)
+ *   out=file                  result file (default episodes.tsv)
+ */
+public class BatchEpisodeRunner {
+
+	private static final int FOOTMEN_PLAYER = 0;
+	private static final int ARCHERS_PLAYER = 1;
+
+	/*
+	 * Outcome codes of an episode
+	 */
+	public static final int WIN = 1;
+	public static final int LOSS = -1;
+	public static final int TURN_LIMIT = 0;
+	public static final int ERROR = -2;
+
+	/**
+	 * The result of one episode
+	 */
+	public static class EpisodeResult {
+		public String map;
+		public long seed;
+		public int turns;
+		public int outcome;
+		public long planNanos;
+		public long nodesSearched;
+		/*
+		 * The exception that ended an ERROR episode, empty otherwise
+		 */
+		public String error = "";
+	}
+
+	public static void main(String[] args) throws IOException, InterruptedException {
+		Map<String, String> options = Options.parse(args, 0);
+		if(!options.containsKey("maps")) {
+			System.err.println("You must specify the maps, e.g. maps=maps/2v2-wall.txt");
+			System.exit(1);
+		}
+
+		String agent = options.getOrDefault("agent", "minimax");
+		String[] agentArgs = options.getOrDefault("agentArgs", "2").trim().split("\\s+");
+		int seeds = Integer.parseInt(options.getOrDefault("seeds", "10"));
+		int threads = Integer.parseInt(options.getOrDefault("threads", String.valueOf(Runtime.getRuntime().availableProcessors())));
+		int maxTurns = Integer.parseInt(options.getOrDefault("maxTurns", "500"));
+		String out = options.getOrDefault("out", "episodes.tsv");
+
+		List<String> maps = Arrays.asList(options.get("maps").split(","));
+		Map<String, HeadlessSimulator> simulators = new HashMap<>();
+		for(String map : maps) {
+			simulators.put(map, HeadlessSimulator.load(Paths.get(map)));
+		}
+
+		//The agents print every step, silence them while the batch runs
+		PrintStream stdout = System.out;
+		System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+		long startTime = System.nanoTime();
+		List<EpisodeResult> results = new ArrayList<>();
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		try {
+			List<Future<EpisodeResult>> futures = new ArrayList<>();
+			for(String map : maps) {
+				for(long seed = 0; seed < seeds; seed++) {
+					HeadlessSimulator simulator = simulators.get(map).copy();
+					long episodeSeed = seed;
+					futures.add(pool.submit(() -> runEpisode(map, simulator, agent, agentArgs, episodeSeed, maxTurns)));
+				}
+			}
+			for(Future<EpisodeResult> future : futures) {
+				results.add(future.get());
+			}
+		}
+		catch(ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		}
+		finally {
+			pool.shutdown();
+			System.setOut(stdout);
+		}
+		double seconds = (System.nanoTime() - startTime) / 1e9;
+
+		writeColumns(out, results);
+		int wins = 0;
+		for(EpisodeResult result : results) {
+			if(result.outcome == WIN) {
+				wins++;
+			}
+		}
+		System.out.println("Episodes: " + results.size());
+		System.out.println("Wins: " + wins);
+		System.out.println("Total time: " + seconds);
+		System.out.println("Results written to " + out);
+	}
+
+	/**
+	 * Plays one episode of the agent from the initial state of the simulator
+	 */
+	public static EpisodeResult runEpisode(String map, HeadlessSimulator simulator, String agentName, String[] agentArgs, long seed, int maxTurns) {
+		EpisodeResult result = new EpisodeResult();
+		result.map = map;
+		result.seed = seed;
+		simulator.reset();
+		HeadlessSimulator.Policy archers = HeadlessSimulator.randomPolicy(new SplittableRandom(seed));
+		int[] actions = new int[simulator.getUnitCount()];
+		Agent agent = agentName.equals("astar") ? new AstarAgent(FOOTMEN_PLAYER, agentArgs) : new MinimaxAlphaBeta(FOOTMEN_PLAYER, agentArgs);
+
+		long planNanos = 0;
+		try {
+			boolean first = true;
+			while(!simulator.isTerminal() && simulator.getTurn() < maxTurns) {
+				State.StateView view = toStateView(simulator);
+				long startTime = System.nanoTime();
+				Map<Integer, Action> agentActions = first ? agent.initialStep(view, null) : agent.middleStep(view, null);
+				planNanos += System.nanoTime() - startTime;
+				first = false;
+
+				Arrays.fill(actions, HeadlessSimulator.IDLE);
+				toActionCodes(agentActions, actions);
+				simulator.step(actions);
+				Arrays.fill(actions, HeadlessSimulator.IDLE);
+				archers.chooseActions(simulator, actions);
+				simulator.step(actions);
+			}
+			agent.terminalStep(toStateView(simulator), null);
+			result.outcome = !simulator.isTerminal() ? TURN_LIMIT : simulator.isFootmenWin() ? WIN : LOSS;
+		}
+		catch(RuntimeException e) {
+			result.outcome = ERROR;
+			result.error = e.toString();
+			//stdout is silenced during the batch, stderr is not
+			System.err.println("Episode " + map + " seed " + seed + " failed:");
+			e.printStackTrace();
+		}
+		result.turns = simulator.getTurn();
+		if(agent instanceof AstarAgent) {
+			result.planNanos = ((AstarAgent) agent).getTotalPlanTime();
+		}
+		else {
+			result.planNanos = planNanos;
+			result.nodesSearched = ((MinimaxAlphaBeta) agent).getNodesSearched();
+		}
+		return result;
+	}
+
+	/**
+	 * Builds a SEPIA state holding the trees and the living units of the simulator, and returns the
+	 * footmen's view of it. Unit IDs are the simulator's unit indices, trees are numbered after them.
+	 */
+	public static State.StateView toStateView(HeadlessSimulator simulator) {
+		State.StateBuilder builder = new State.StateBuilder();
+		builder.setSize(simulator.getWidth(), simulator.getHeight());
+		builder.addPlayer(FOOTMEN_PLAYER);
+		builder.addPlayer(ARCHERS_PLAYER);
+
+		UnitTemplate[] templates = new UnitTemplate[3];
+		templates[HeadlessSimulator.FOOTMAN] = createTemplate(0, "Footman", FOOTMEN_PLAYER, 1);
+		templates[HeadlessSimulator.ARCHER] = createTemplate(1, "Archer", ARCHERS_PLAYER, simulator.getArcherRange());
+		templates[HeadlessSimulator.TOWNHALL] = createTemplate(2, "TownHall", ARCHERS_PLAYER, 0);
+		for(UnitTemplate template : templates) {
+			builder.addTemplate(template);
+		}
+
+		for(int i = 0; i < simulator.getUnitCount(); i++) {
+			if(simulator.getUnitHP(i) > 0) {
+				Unit unit = new Unit(templates[simulator.getKind(i)], i);
+				unit.setHP(simulator.getUnitHP(i));
+				builder.addUnit(unit, simulator.getUnitX(i), simulator.getUnitY(i));
+			}
+		}
+		int resourceID = simulator.getUnitCount();
+		for(int y = 0; y < simulator.getHeight(); y++) {
+			for(int x = 0; x < simulator.getWidth(); x++) {
+				if(simulator.isTree(x, y)) {
+					builder.addResource(new ResourceNode(ResourceNode.Type.TREE, x, y, 100, resourceID++));
+				}
+			}
+		}
+		return builder.build().getView(FOOTMEN_PLAYER);
+	}
+
+	private static UnitTemplate createTemplate(int id, String name, int player, int range) {
+		UnitTemplate template = new UnitTemplate(id);
+		template.setName(name);
+		template.setPlayer(player);
+		template.setRange(range);
+		return template;
+	}
+
+	/*
+	 * Converts SEPIA primitive moves and attacks to simulator action codes
+	 */
+	private static void toActionCodes(Map<Integer, Action> agentActions, int[] actions) {
+		if(agentActions == null) {
+			return;
+		}
+		for(Map.Entry<Integer, Action> entry : agentActions.entrySet()) {
+			int unit = entry.getKey();
+			Action action = entry.getValue();
+			if(unit < 0 || unit >= actions.length) {
+				continue;
+			}
+			if(action instanceof TargetedAction) {
+				actions[unit] = HeadlessSimulator.ATTACK + ((TargetedAction) action).getTargetId();
+			}
+			else if(action instanceof DirectedAction) {
+				switch(((DirectedAction) action).getDirection()) {
+					case NORTH: actions[unit] = HeadlessSimulator.NORTH; break;
+					case EAST: actions[unit] = HeadlessSimulator.EAST; break;
+					case SOUTH: actions[unit] = HeadlessSimulator.SOUTH; break;
+					case WEST: actions[unit] = HeadlessSimulator.WEST; break;
+					case NORTHEAST: actions[unit] = HeadlessSimulator.NORTHEAST; break;
+					case SOUTHEAST: actions[unit] = HeadlessSimulator.SOUTHEAST; break;
+					case SOUTHWEST: actions[unit] = HeadlessSimulator.SOUTHWEST; break;
+					case NORTHWEST: actions[unit] = HeadlessSimulator.NORTHWEST; break;
+					default: break;
+				}
+			}
+		}
+	}
+
+	/*
+	 * Writes one line per column: the column name, then one tab separated value per episode
+	 */
+	private static void writeColumns(String file, List<EpisodeResult> results) throws IOException {
+		try(PrintWriter writer = new PrintWriter(Files.newBufferedWriter(Paths.get(file)))) {
+			writer.print("map");
+			for(EpisodeResult result : results) {
+				writer.print("\t" + result.map);
+			}
+			writer.println();
+			writer.print("seed");
+			for(EpisodeResult result : results) {
+				writer.print("\t" + result.seed);
+			}
+			writer.println();
+			writer.print("turns");
+			for(EpisodeResult result : results) {
+				writer.print("\t" + result.turns);
+			}
+			writer.println();
+			writer.print("outcome");
+			for(EpisodeResult result : results) {
+				writer.print("\t" + result.outcome);
+			}
+			writer.println();
+			writer.print("planNanos");
+			for(EpisodeResult result : results) {
+				writer.print("\t" + result.planNanos);
+			}
+			writer.println();
+			writer.print("nodesSearched");
+			for(EpisodeResult result : results) {
+				writer.print("\t" + result.nodesSearched);
+			}
+			writer.println();
+			writer.print("error");
+			for(EpisodeResult result : results) {
+				writer.print("\t" + result.error.replaceAll("\\s+", " "));
+			}
+			writer.println();
+		}
+	}
+}
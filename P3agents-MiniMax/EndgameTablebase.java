@@ -0,0 +1,372 @@
+package edu.cwru.sepia.agent.minimax;
+
+import edu.cwru.sepia.agent.grid.MapLocation;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+
+/**
+ * Exact results of one footman against one archer on a fixed tree layout, solved offline by retrograde
+ * analysis and memory-mapped by the agent.
+ *
+ * A position is the cells of both units, the number of hits each one can still take and the side to move.
+ * Its value is from the point of view of the side to move: +d means it wins in d plys, -d means it loses in
+ * d plys, 0 means neither side can force a win (or the position is invalid). The rules are the ones of
+ * GameState.getChildren(): a unit with a legal move or attack must use one, a unit with none stays idle.
+ *
+ * File layout: a header of HEADER_INTS ints (magic, width, height, archer range, damage, maximum footman
+ * hits, maximum archer hits, table offset), one byte per cell for the trees, then one short per position.
+ *
+ * Usage: EndgameTablebase mapFile outFile [maxFootmanHits] [maxArcherHits]
+ */
+public class EndgameTablebase {
+
+	private static final int MAGIC = 0x45474442;
+	private static final int HEADER_INTS = 8;
+	private static final int FOOTMAN_TO_MOVE = 0;
+	private static final int ARCHER_TO_MOVE = 1;
+
+	private static final int[] DX = {0, 1, 0, -1};
+	private static final int[] DY = {-1, 0, 1, 0};
+
+	private final int width;
+	private final int height;
+	private final int archerRange;
+	private final int damage;
+	private final int maxFootmanHits;
+	private final int maxArcherHits;
+	private final boolean[] trees;
+	private final ShortBuffer table;
+
+	private EndgameTablebase(int width, int height, int archerRange, int damage, int maxFootmanHits, int maxArcherHits,
+			boolean[] trees, ShortBuffer table) {
+		this.width = width;
+		this.height = height;
+		this.archerRange = archerRange;
+		this.damage = damage;
+		this.maxFootmanHits = maxFootmanHits;
+		this.maxArcherHits = maxArcherHits;
+		this.trees = trees;
+		this.table = table;
+	}
+
+	/**
+	 * Memory-maps a tablebase file
+	 */
+	public static EndgameTablebase load(Path file) throws IOException {
+		try(FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			if(buffer.getInt() != MAGIC) {
+				throw new IOException("Not an endgame tablebase: " + file);
+			}
+			int width = buffer.getInt();
+			int height = buffer.getInt();
+			int archerRange = buffer.getInt();
+			int damage = buffer.getInt();
+			int maxFootmanHits = buffer.getInt();
+			int maxArcherHits = buffer.getInt();
+			int tableOffset = buffer.getInt();
+			boolean[] trees = new boolean[width * height];
+			for(int cell = 0; cell < trees.length; cell++) {
+				trees[cell] = buffer.get() != 0;
+			}
+			buffer.position(tableOffset);
+			return new EndgameTablebase(width, height, archerRange, damage, maxFootmanHits, maxArcherHits, trees,
+					buffer.slice().asShortBuffer());
+		}
+	}
+
+	/**
+	 * Returns true if the tablebase was generated for the map size and tree layout of the state.
+	 * This costs one lookup per cell, so it is checked once per episode rather than on every probe
+	 */
+	public boolean matchesLayout(GameState state) {
+		if(state.getXExtent() != width || state.getYExtent() != height) {
+			return false;
+		}
+		for(int y = 0; y < height; y++) {
+			for(int x = 0; x < width; x++) {
+				if(state.isTree(x, y) != trees[x + y * width]) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the child of a footman-to-move state that keeps the fastest forced win, or null if the state is
+	 * not covered by the tablebase or the footman cannot force a win
+	 */
+	public GameStateChild winningChild(GameState state) {
+		int value = probe(state);
+		if(value <= 0) {
+			return null;
+		}
+		for(GameStateChild child : state.getChildren()) {
+			if(!hasLivingUnit(child.state.getArchersHP())) {
+				return child;
+			}
+			if(probe(child.state) == -(value - 1)) {
+				return child;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Returns the value of the state for its side to move, 0 if it is a draw or is not covered:
+	 * not exactly one footman and one archer, HP above the table limits or a different map
+	 */
+	public int probe(GameState state) {
+		if(state.getXExtent() != width || state.getYExtent() != height ||
+				state.getArcherRange() != archerRange || GameState.getAttackDamage() != damage ||
+				state.getFootmenLocations().size() != 1 || state.getArchersLocations().size() != 1) {
+			return 0;
+		}
+		int footmanHits = hits(state.getFootmenHP().values().iterator().next());
+		int archerHits = hits(state.getArchersHP().values().iterator().next());
+		if(footmanHits < 1 || footmanHits > maxFootmanHits || archerHits < 1 || archerHits > maxArcherHits) {
+			return 0;
+		}
+		MapLocation footman = state.getFootmenLocations().values().iterator().next();
+		MapLocation archer = state.getArchersLocations().values().iterator().next();
+		int side = state.isFootmanTurn() ? FOOTMAN_TO_MOVE : ARCHER_TO_MOVE;
+		return table.get(index(side, footmanHits, archerHits, footman.getX() + footman.getY() * width,
+				archer.getX() + archer.getY() * width, width * height, maxFootmanHits, maxArcherHits));
+	}
+
+	/*
+	 * The number of attacks a unit can still take
+	 */
+	private int hits(int hp) {
+		return (hp + damage - 1) / damage;
+	}
+
+	private static boolean hasLivingUnit(Map<Integer, Integer> unitsHP) {
+		for(int hp : unitsHP.values()) {
+			if(hp > 0) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static int index(int side, int footmanHits, int archerHits, int footmanCell, int archerCell,
+			int cells, int maxFootmanHits, int maxArcherHits) {
+		return (((side * maxArcherHits + archerHits - 1) * maxFootmanHits + footmanHits - 1) * cells + footmanCell) * cells + archerCell;
+	}
+
+	/**
+	 * Solves every position of the map's tree layout up to the given hit counts and writes the tablebase file
+	 */
+	public static void generate(HeadlessSimulator map, int maxFootmanHits, int maxArcherHits, Path file) throws IOException {
+		Solver solver = new Solver(map, maxFootmanHits, maxArcherHits);
+		solver.solve();
+
+		int cells = solver.cells;
+		int tableOffset = HEADER_INTS * 4 + cells + (cells % 2);
+		try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file)))) {
+			out.writeInt(MAGIC);
+			out.writeInt(map.getWidth());
+			out.writeInt(map.getHeight());
+			out.writeInt(map.getArcherRange());
+			out.writeInt(solver.damage);
+			out.writeInt(maxFootmanHits);
+			out.writeInt(maxArcherHits);
+			out.writeInt(tableOffset);
+			for(int cell = 0; cell < cells; cell++) {
+				out.writeByte(solver.trees[cell] ? 1 : 0);
+			}
+			if(cells % 2 == 1) {
+				out.writeByte(0);
+			}
+			writeShorts(out, solver.values);
+		}
+	}
+
+	private static void writeShorts(OutputStream out, short[] values) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(8192);
+		for(short value : values) {
+			if(!buffer.hasRemaining()) {
+				out.write(buffer.array(), 0, buffer.position());
+				buffer.clear();
+			}
+			buffer.putShort(value);
+		}
+		out.write(buffer.array(), 0, buffer.position());
+	}
+
+	/*
+	 * Retrograde solver. Iteration n resolves exactly the positions won or lost in n plys: a position is won
+	 * in n if a successor is lost for the opponent in n - 1, and lost in n if every successor is won for the
+	 * opponent, the longest in n - 1. Only values resolved in earlier iterations are read, so the distances
+	 * are exact. Positions still unresolved when an iteration changes nothing are draws.
+	 */
+	private static class Solver {
+		private final int width;
+		private final int height;
+		private final int cells;
+		private final boolean[] trees;
+		private final int archerRange;
+		private final int damage;
+		private final int maxFootmanHits;
+		private final int maxArcherHits;
+		private final short[] values;
+		private final int[] successors = new int[5];
+
+		public Solver(HeadlessSimulator map, int maxFootmanHits, int maxArcherHits) {
+			this.width = map.getWidth();
+			this.height = map.getHeight();
+			this.cells = width * height;
+			this.trees = new boolean[cells];
+			for(int y = 0; y < height; y++) {
+				for(int x = 0; x < width; x++) {
+					trees[x + y * width] = map.isTree(x, y);
+				}
+			}
+			this.archerRange = map.getArcherRange();
+			this.damage = GameState.getAttackDamage();
+			this.maxFootmanHits = maxFootmanHits;
+			this.maxArcherHits = maxArcherHits;
+			this.values = new short[2 * maxArcherHits * maxFootmanHits * cells * cells];
+		}
+
+		public void solve() {
+			int[] pending = new int[values.length];
+			int pendingCount = 0;
+			for(int side = 0; side < 2; side++) {
+				for(int archerHits = 1; archerHits <= maxArcherHits; archerHits++) {
+					for(int footmanHits = 1; footmanHits <= maxFootmanHits; footmanHits++) {
+						for(int footmanCell = 0; footmanCell < cells; footmanCell++) {
+							for(int archerCell = 0; archerCell < cells; archerCell++) {
+								if(footmanCell != archerCell && !trees[footmanCell] && !trees[archerCell]) {
+									pending[pendingCount++] = index(side, footmanHits, archerHits, footmanCell, archerCell,
+											cells, maxFootmanHits, maxArcherHits);
+								}
+							}
+						}
+					}
+				}
+			}
+
+			int[] resolvedIndex = new int[pending.length];
+			short[] resolvedValue = new short[pending.length];
+			for(int n = 1; n < Short.MAX_VALUE && pendingCount > 0; n++) {
+				int kept = 0;
+				int resolvedCount = 0;
+				for(int i = 0; i < pendingCount; i++) {
+					int value = evaluate(pending[i], n);
+					if(value == 0) {
+						pending[kept++] = pending[i];
+					}
+					else {
+						//Written after the sweep, so this iteration only reads earlier iterations
+						resolvedIndex[resolvedCount] = pending[i];
+						resolvedValue[resolvedCount] = (short) value;
+						resolvedCount++;
+					}
+				}
+				for(int i = 0; i < resolvedCount; i++) {
+					values[resolvedIndex[i]] = resolvedValue[i];
+				}
+				pendingCount = kept;
+				if(resolvedCount == 0) {
+					break;
+				}
+			}
+		}
+
+		/*
+		 * Returns n or -n if the position is won or lost in n plys, 0 otherwise
+		 */
+		private int evaluate(int index, int n) {
+			int archerCell = index % cells;
+			int rest = index / cells;
+			int footmanCell = rest % cells;
+			rest /= cells;
+			int footmanHits = rest % maxFootmanHits + 1;
+			rest /= maxFootmanHits;
+			int archerHits = rest % maxArcherHits + 1;
+			int side = rest / maxArcherHits;
+
+			boolean footmanToMove = side == FOOTMAN_TO_MOVE;
+			int moverCell = footmanToMove ? footmanCell : archerCell;
+			int otherCell = footmanToMove ? archerCell : footmanCell;
+			int nextSide = footmanToMove ? ARCHER_TO_MOVE : FOOTMAN_TO_MOVE;
+
+			int count = 0;
+			if(inAttackRange(moverCell, otherCell, footmanToMove)) {
+				int otherHits = (footmanToMove ? archerHits : footmanHits) - 1;
+				if(otherHits == 0) {
+					return n == 1 ? 1 : 0;
+				}
+				successors[count++] = footmanToMove
+						? index(nextSide, footmanHits, otherHits, footmanCell, archerCell, cells, maxFootmanHits, maxArcherHits)
+						: index(nextSide, otherHits, archerHits, footmanCell, archerCell, cells, maxFootmanHits, maxArcherHits);
+			}
+			int x = moverCell % width;
+			int y = moverCell / width;
+			for(int d = 0; d < 4; d++) {
+				int nextX = x + DX[d];
+				int nextY = y + DY[d];
+				int nextCell = nextX + nextY * width;
+				if(nextX >= 0 && nextX < width && nextY >= 0 && nextY < height && !trees[nextCell] && nextCell != otherCell) {
+					successors[count++] = footmanToMove
+							? index(nextSide, footmanHits, archerHits, nextCell, archerCell, cells, maxFootmanHits, maxArcherHits)
+							: index(nextSide, footmanHits, archerHits, footmanCell, nextCell, cells, maxFootmanHits, maxArcherHits);
+				}
+			}
+			if(count == 0) {
+				//No legal action, the unit stays idle
+				successors[count++] = index(nextSide, footmanHits, archerHits, footmanCell, archerCell, cells, maxFootmanHits, maxArcherHits);
+			}
+
+			boolean allWonByOpponent = true;
+			int longest = 0;
+			for(int i = 0; i < count; i++) {
+				int value = values[successors[i]];
+				if(value < 0 && -value < n) {
+					return n;
+				}
+				if(value <= 0 || value >= n) {
+					allWonByOpponent = false;
+				}
+				else {
+					longest = Math.max(longest, value);
+				}
+			}
+			return allWonByOpponent ? -(longest + 1) : 0;
+		}
+
+		private boolean inAttackRange(int attackerCell, int targetCell, boolean footman) {
+			int dx = Math.abs(attackerCell % width - targetCell % width);
+			int dy = Math.abs(attackerCell / width - targetCell / width);
+			return footman ? dx + dy == 1 : Math.max(dx, dy) <= archerRange;
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+		if(args.length < 2) {
+			System.err.println("Usage: EndgameTablebase mapFile outFile [maxFootmanHits] [maxArcherHits]");
+			System.exit(1);
+		}
+		HeadlessSimulator map = HeadlessSimulator.load(Paths.get(args[0]));
+		int maxFootmanHits = args.length > 2 ? Integer.parseInt(args[2]) : 8;
+		int maxArcherHits = args.length > 3 ? Integer.parseInt(args[3]) : 4;
+		long startTime = System.nanoTime();
+		generate(map, maxFootmanHits, maxArcherHits, Paths.get(args[1]));
+		System.out.println("Generated " + args[1] + " in " + (System.nanoTime() - startTime) / 1e9 + "s");
+	}
+}
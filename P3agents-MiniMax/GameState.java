@@ -4,6 +4,11 @@ import edu.cwru.sepia.action.Action;
 import edu.cwru.sepia.action.ActionType;
 import edu.cwru.sepia.action.DirectedAction;
 import edu.cwru.sepia.action.TargetedAction;
+import edu.cwru.sepia.agent.grid.CellLayer;
+import edu.cwru.sepia.agent.grid.DistanceOracle;
+import edu.cwru.sepia.agent.grid.Grid;
+import edu.cwru.sepia.agent.grid.MapLocation;
+import edu.cwru.sepia.agent.grid.RangeTable;
 import edu.cwru.sepia.environment.model.state.ResourceNode.ResourceView;
 import edu.cwru.sepia.environment.model.state.State;
 import edu.cwru.sepia.environment.model.state.Unit;
@@ -29,69 +34,77 @@ public class GameState {
 	private int XExtent;
 	private int YExtent;
 	private boolean isFootmanTurn;
+	private int archerRange;
+	private int maxActionsPerUnit = Integer.MAX_VALUE;
 	private Map<Integer, MapLocation> footmenMap, archersMap;
 	private Map<Integer, Integer> footmenHP, archersHP;
-	private Set<MapLocation> trees;
-
 	
 	/*
-	 * Abstraction for a map location
+	 * Map geometry, the trees, the path lengths around them and one interned MapLocation per cell, indexed by
+	 * grid cell. Built once for the root and shared by every state of the search
 	 */
-	class MapLocation{
-		private int x;
-		private int y;
-		
-		public MapLocation(int x, int y) {
-			this.x = x;
-			this.y = y;
-		}
-
-		public int getX() {
-			return x;
-		}
-
-		public void setX(int x) {
-			this.x = x;
-		}
-
-		public int getY() {
-			return y;
-		}
-
-		public void setY(int y) {
-			this.y = y;
-		}
-
-		/*
-		 * Auto-generation, make two map location identical if x1 == x2 and y1 == y2
-		 */
-		
-		@Override
-		public int hashCode() {
-			final int prime = 101;
-			int result = 1;
-			result = prime * result + x;
-			result = prime * result + y;
-			return result;
-		}
-
-		@Override
-		public boolean equals(Object obj) {
-			if (this == obj)
-				return true;
-			if (obj == null)
-				return false;
-			if (getClass() != obj.getClass())
-				return false;
-			MapLocation other = (MapLocation) obj;
-			if (x != other.x)
-				return false;
-			if (y != other.y)
-				return false;
-			return true;
-		}
-	}
+	private Grid grid;
+	private CellLayer trees;
+	private DistanceOracle distances;
+	private MapLocation[] locations;
+	
+	/*
+	 * Threat map: the cells any living archer can hit. archerReach holds the cells each archer position can
+	 * hit and is shared by the whole search. The threat map of a state is built on first use, from the
+	 * parent's when no archer moved or died (threatParent), otherwise by OR-ing the reach of each archer
+	 */
+	private RangeTable archerReach;
+	private CellLayer threats;
+	private GameState threatParent;
+	
+	/*
+	 * Damage dealt by one attack of either unit type, and the archer range used when the map has no archers
+	 */
+	private static final int ATTACK_DAMAGE = 5;
+	private static final int DEFAULT_ARCHER_RANGE = 10;
+	
+	/*
+	 * Units move in the four cardinal directions
+	 */
+	private static final Direction[] DIRECTIONS = {Direction.NORTH, Direction.EAST, Direction.SOUTH, Direction.WEST};
+	
+	/*
+	 * Weights of the utility features of one footman, see computeFootmanTerm. LeafBatch applies the same weights
+	 */
+	static final double FOOTMAN_HP_WEIGHT = 0;
+	static final double ARCHER_HP_WEIGHT = -100;
+	static final double DISTANCE_WEIGHT = -100;
+	static final double SQRT_DISTANCE_WEIGHT = -100;
+	static final double SQUARE_DISTANCE_WEIGHT = -1;
+	static final double STEP_COUNT_WEIGHT = -1000;
+	static final double THREATENED_FOOTMAN_WEIGHT = -200;
+	static final double NOISE_WEIGHT = 1000;
+	
+	/*
+	 * Utility of this state, computed on first use. Sorting asks for it once per comparison and principal
+	 * variation search may evaluate the same leaf twice, and both must see the same value
+	 */
+	private double utility;
+	private boolean hasUtility = false;
+	
+	/*
+	 * Incremental evaluation: the utility term of each footman, the nearest archer it was computed against,
+	 * and the parent state until the terms have been derived from it
+	 */
+	private Map<Integer, Double> footmanTerms;
+	private Map<Integer, Integer> nearestArchers;
+	private GameState previousState;
+	
+	/*
+	 * Children generated for this state, kept so that a tree retained across turns is never expanded twice
+	 */
+	private List<GameStateChild> children;
 	
+	/*
+	 * Canonical key of this state, see PositionKey
+	 */
+	private PositionKey canonicalKey;
+
     /**
      * You will implement this constructor. It will
      * extract all of the needed state information from the built in
@@ -127,34 +140,59 @@ public class GameState {
      * @param state Current state of the episode
      */
     public GameState(State.StateView state) {
+    	this(state, null);
+    }
+
+    /*
+     * Reads the units from the state view and takes the map (geometry, trees and the caches built on them)
+     * from world, a state of an earlier turn, when the caller knows the trees have not changed since. With no
+     * world the map is read from the state view
+     */
+    public GameState(State.StateView state, GameState world) {
     	XExtent = state.getXExtent();
     	YExtent = state.getYExtent();
     	isFootmanTurn = true;
-    	List<ResourceView> treesView = state.getAllResourceNodes();
     	List<UnitView>  footmen = state.getUnits(0);
     	List<UnitView> archers = state.getUnits(1);
     	footmenMap = new HashMap<Integer, MapLocation>();
     	archersMap = new HashMap<Integer, MapLocation>();
     	footmenHP = new HashMap<Integer, Integer>();
     	archersHP = new HashMap<Integer, Integer>();
-    	trees = new HashSet<MapLocation>();
-    	for(ResourceView tree : treesView) {
-    		trees.add(new MapLocation(tree.getXPosition(), tree.getYPosition()));
+    	if(world != null && world.XExtent == XExtent && world.YExtent == YExtent) {
+    		grid = world.grid;
+    		trees = world.trees;
+    		distances = world.distances;
+    		locations = world.locations;
+    	}
+    	else {
+    		grid = new Grid(XExtent, YExtent);
+    		trees = new CellLayer(grid);
+    		locations = new MapLocation[grid.size()];
+    		for(int cell = 0; cell < grid.size(); cell++) {
+    			locations[cell] = new MapLocation(grid.x(cell), grid.y(cell));
+    		}
+    		for(ResourceView tree : state.getAllResourceNodes()) {
+    			trees.set(grid.cell(tree.getXPosition(), tree.getYPosition()));
+    		}
+    		distances = new DistanceOracle(grid, trees, false);
     	}
     	//Initialize maps that will keep track of the state
     	for(UnitView footman : footmen) {
-    		MapLocation location = new MapLocation(footman.getXPosition(), footman.getYPosition());
+    		MapLocation location = location(footman.getXPosition(), footman.getYPosition());
     		Integer hp = footman.getHP();
 
     		footmenHP.put(footman.getID(), hp);
     		footmenMap.put(footman.getID(), location);
     	}
     	for(UnitView archer : archers) {
-    		MapLocation location = new MapLocation(archer.getXPosition(), archer.getYPosition());
+    		MapLocation location = location(archer.getXPosition(), archer.getYPosition());
     		Integer hp = archer.getHP();
     		archersHP.put(archer.getID(), hp);
     		archersMap.put(archer.getID(), location);
     	}
+    	archerRange = archers.isEmpty() ? DEFAULT_ARCHER_RANGE : archers.get(0).getTemplateView().getRange();
+    	archerReach = world != null && world.grid == grid && world.archerRange == archerRange
+    			? world.archerReach : new RangeTable(grid, archerRange);
 
     }
 
@@ -163,14 +201,45 @@ public class GameState {
      * Constructor for specific data of future states, for the purpose of tracking state
      */
     public GameState(GameState previousState, Map<Integer, MapLocation> footmenMap, Map<Integer, MapLocation> archersMap, Map<Integer, Integer> footmenHP, Map<Integer, Integer> archersHP) {
+    	this.grid = previousState.grid;
     	this.trees = previousState.trees;
+    	this.distances = previousState.distances;
+    	this.locations = previousState.locations;
     	this.XExtent = previousState.XExtent;
     	this.YExtent = previousState.YExtent;
     	this.isFootmanTurn = !previousState.isFootmanTurn;
+    	this.archerRange = previousState.archerRange;
+    	this.maxActionsPerUnit = previousState.maxActionsPerUnit;
     	this.footmenMap = footmenMap;
     	this.archersMap = archersMap;
     	this.footmenHP = footmenHP;
     	this.archersHP = archersHP;
+    	this.previousState = previousState;
+    	this.archerReach = previousState.archerReach;
+    	if(archersMap == previousState.archersMap && sameLivingUnits(archersHP, previousState.archersHP)) {
+    		this.threatParent = previousState;
+    	}
+    }
+
+    /*
+     * Copies the position of another state without any of its cached children or evaluation, so that
+     * searches running in other threads do not share lazily filled caches
+     */
+    public GameState(GameState other) {
+    	this.grid = other.grid;
+    	this.trees = other.trees;
+    	this.distances = other.distances;
+    	this.locations = other.locations;
+    	this.archerReach = other.archerReach;
+    	this.XExtent = other.XExtent;
+    	this.YExtent = other.YExtent;
+    	this.isFootmanTurn = other.isFootmanTurn;
+    	this.archerRange = other.archerRange;
+    	this.maxActionsPerUnit = other.maxActionsPerUnit;
+    	this.footmenMap = other.footmenMap;
+    	this.archersMap = other.archersMap;
+    	this.footmenHP = other.footmenHP;
+    	this.archersHP = other.archersHP;
     }
 
     /**
@@ -192,85 +261,246 @@ public class GameState {
      * @return The weighted linear combination of the features
      */
     public double getUtility() {
-    	double utility = 0;
+    	if(!hasUtility) {
+    		utility = computeUtility();
+    		hasUtility = true;
+    	}
+    	return utility;
+    }
 
-    	double footmanHPweight = 0;
-    	double archersHPweight = -100;
-    	double distanceWeight = -100;
-    	double sqrtDistanceWeight = -100;
-    	double squareDistanceWeight = -1;
-    	double minimumStepCountWeight = -1000;
+    /*
+     * Computes the weighted linear combination of the features described above.
+     *
+     * The utility is a sum of one term per footman, and each term only depends on that footman and its
+     * nearest archer. When the parent state has already computed its terms, a footman keeps its parent's
+     * term unless it moved or lost HP, its nearest archer moved or lost HP, or another archer that changed
+     * is now at least as close. So the cost of a leaf follows the number of units that changed.
+     * A danger term for each footman in archer range is added to the sum, see sumFootmanTerms.
+     */
+    private double computeUtility() {
+    	for (int footmanID : beginUtility()) {
+    		footmanTerms.put(footmanID, computeFootmanTerm(footmanID));
+    	}
+    	return sumFootmanTerms();
+    }
+    
+    /*
+     * Starts computing the utility: copies the terms that can be reused from the parent and returns the IDs of
+     * the footmen whose terms must be computed
+     */
+    private List<Integer> beginUtility() {
+    	GameState parent = previousState;
+    	previousState = null;
+    	boolean incremental = parent != null && parent.footmanTerms != null;
+    	Set<Integer> changedArchers = incremental ? changedUnits(parent.archersMap, archersMap, parent.archersHP, archersHP) : null;
     	
+    	List<Integer> pending = new ArrayList<>();
+    	footmanTerms = new HashMap<>();
+    	nearestArchers = new HashMap<>();
+    	for (int footmanID: footmenMap.keySet()) {
+    		if (incremental && !isAffected(parent, footmanID, changedArchers)) {
+    			footmanTerms.put(footmanID, parent.footmanTerms.get(footmanID));
+    			nearestArchers.put(footmanID, parent.nearestArchers.get(footmanID));
+    		}
+    		else {
+    			pending.add(footmanID);
+    		}
+    	}
+    	return pending;
+    }
+    
+    /*
+     * The footman terms, plus a danger term for every living footman standing where an archer can hit it.
+     * The danger term reads the threat map, so it costs one bit test per footman and is not made incremental
+     */
+    private double sumFootmanTerms() {
+    	double utility = 0;
+    	CellLayer threatened = getThreats();
     	for (int footmanID: footmenMap.keySet()) {
+    		utility += footmanTerms.get(footmanID);
     		MapLocation footman = footmenMap.get(footmanID);
-    		int footmanHP = footmenHP.get(footmanID);
-    		int nearestArcherID = 0;
-			MapLocation nearestArcher = null;
-			int nearestDistance = Integer.MAX_VALUE;
-    		for (int archerID: archersMap.keySet()) {
-    			MapLocation archer = archersMap.get(archerID);
-    			int distance = Math.abs(archer.x - footman.x) + Math.abs(archer.y - footman.y);
-    			if (distance < nearestDistance) {
-    				nearestDistance = distance;
-    				nearestArcherID = archerID;
-    				nearestArcher = archer;
+    		if (footmenHP.get(footmanID) > 0 && threatened.get(grid.cell(footman.x, footman.y))) {
+    			utility += THREATENED_FOOTMAN_WEIGHT;
+    		}
+    	}
+    	return utility;
+    }
+    
+    /*
+     * The threat map of this state, see archerReach
+     */
+    CellLayer getThreats() {
+    	if (threats == null) {
+    		if (threatParent != null) {
+    			threats = threatParent.getThreats();
+    			threatParent = null;
+    		}
+    		else {
+    			threats = new CellLayer(grid);
+    			for (int archerID : archersMap.keySet()) {
+    				if (archersHP.get(archerID) > 0) {
+    					MapLocation archer = archersMap.get(archerID);
+    					threats.or(archerReach.reach(grid.cell(archer.x, archer.y)));
+    				}
     			}
     		}
-    		int distance = nearestDistance;
-    		int archerHP = archersHP.get(nearestArcherID);
-    		int minStepCount = minimumStepCount(nearestArcher, footman);
-    		utility += minStepCount * minimumStepCountWeight;
-    		
-    		utility += archerHP * archersHPweight;
-			utility += footmanHP * footmanHPweight;
+    	}
+    	return threats;
+    }
+    
+    /*
+     * True if the same units are alive in both HP maps
+     */
+    private static boolean sameLivingUnits(Map<Integer, Integer> hp, Map<Integer, Integer> previousHP) {
+    	if (hp == previousHP) {
+    		return true;
+    	}
+    	for (Map.Entry<Integer, Integer> entry : hp.entrySet()) {
+    		Integer previous = previousHP.get(entry.getKey());
+    		if (previous == null || (previous > 0) != (entry.getValue() > 0)) {
+    			return false;
+    		}
+    	}
+    	return hp.size() == previousHP.size();
+    }
+    
+    /*
+     * Batch evaluation, see LeafBatch. Adds this state, its archers and one row per footman whose term must be
+     * computed, unless the utility is already known
+     */
+    void addToBatch(LeafBatch batch) {
+    	if (hasUtility) {
+    		return;
+    	}
+    	List<Integer> pending = beginUtility();
+    	int stateIndex = batch.addState(this);
+    	if (pending.isEmpty()) {
+    		return;
+    	}
+    	for (int archerID : archersMap.keySet()) {
+    		MapLocation archer = archersMap.get(archerID);
+    		batch.addArcher(archerID, archer.x, archer.y, archersHP.get(archerID));
+    	}
+    	for (int footmanID : pending) {
+    		MapLocation footman = footmenMap.get(footmanID);
+    		batch.addRow(stateIndex, footmanID, footman.x, footman.y, footmenHP.get(footmanID));
+    	}
+    }
+    
+    /*
+     * Stores a term computed by the batch
+     */
+    void setFootmanTerm(int footmanID, Integer nearestArcherID, double term) {
+    	footmanTerms.put(footmanID, term);
+    	nearestArchers.put(footmanID, nearestArcherID);
+    }
+    
+    /*
+     * Sums the terms once the batch has computed all of them
+     */
+    void finishBatchUtility() {
+    	utility = sumFootmanTerms();
+    	hasUtility = true;
+    }
+    
+    /*
+     * Computes the utility term of one footman and records its nearest archer
+     */
+    private double computeFootmanTerm(int footmanID) {
+    	double utility = 0;
+
+		MapLocation footman = footmenMap.get(footmanID);
+		int footmanHP = footmenHP.get(footmanID);
+		Integer nearestArcherID = null;
+		MapLocation nearestArcher = null;
+		int nearestDistance = Integer.MAX_VALUE;
+		for (int archerID: archersMap.keySet()) {
+			MapLocation archer = archersMap.get(archerID);
+			int distance = Math.abs(archer.x - footman.x) + Math.abs(archer.y - footman.y);
+			if (distance < nearestDistance) {
+				nearestDistance = distance;
+				nearestArcherID = archerID;
+				nearestArcher = archer;
+			}
+		}
+		nearestArchers.put(footmanID, nearestArcherID);
+		if (nearestArcher == null) {
+			return utility;
+		}
+		int distance = nearestDistance;
+		int archerHP = archersHP.get(nearestArcherID);
+		int minStepCount = minimumStepCount(nearestArcher, footman);
+		utility += minStepCount * STEP_COUNT_WEIGHT;
+		
+		utility += archerHP * ARCHER_HP_WEIGHT;
+		utility += footmanHP * FOOTMAN_HP_WEIGHT;
 
-			utility += distance * distanceWeight;
+		utility += distance * DISTANCE_WEIGHT;
 
-			double sqrtDistance = Math.sqrt(distance);
-			utility += sqrtDistance * sqrtDistanceWeight;
+		double sqrtDistance = Math.sqrt(distance);
+		utility += sqrtDistance * SQRT_DISTANCE_WEIGHT;
 
-			double squareDistance = Math.pow(distance, 2);
-			utility += squareDistance * squareDistanceWeight;
-			
-			utility += Math.random() * 1000;
-    	}
+		double squareDistance = Math.pow(distance, 2);
+		utility += squareDistance * SQUARE_DISTANCE_WEIGHT;
+		
+		utility += Math.random() * NOISE_WEIGHT;
 
     	return utility;
     }
     
-    public int minimumStepCount(MapLocation archer, MapLocation footman) {
-    	Set<MapLocation> hashmap = new HashSet<>();
-    	Queue<MapLocation> queue = new LinkedList<>();
-    	queue.add(footman);
-    	hashmap.add(footman);
-    	Queue<MapLocation> nextQueue = new LinkedList<>();
-    	int step = 0;
-    	while (!queue.isEmpty()) {
-    		MapLocation nextLocation = queue.poll();
-    		if (nextLocation.x == archer.x && nextLocation.y == archer.y) {
-    			return step;
-    		}
-    		
-    		Direction[] directions = {Direction.NORTH, Direction.EAST, Direction.SOUTH, Direction.WEST};
-
-    		for(Direction direction : directions) {
-    			int x = nextLocation.x + direction.xComponent();
-    			int y = nextLocation.y + direction.yComponent();
-    			MapLocation newLocation = new MapLocation(x, y);
-    			if (!trees.contains(newLocation) && !hashmap.contains(newLocation)) {
-    				hashmap.add(newLocation);
-    				nextQueue.add(newLocation);
-    			}
+    /*
+     * Returns true if the parent's term of this footman cannot be reused
+     */
+    private boolean isAffected(GameState parent, int footmanID, Set<Integer> changedArchers) {
+    	if (!parent.footmanTerms.containsKey(footmanID) ||
+    			!footmenMap.get(footmanID).equals(parent.footmenMap.get(footmanID)) ||
+    			!footmenHP.get(footmanID).equals(parent.footmenHP.get(footmanID))) {
+    		return true;
+    	}
+    	if (changedArchers.isEmpty()) {
+    		return false;
+    	}
+    	Integer nearestArcherID = parent.nearestArchers.get(footmanID);
+    	if (nearestArcherID == null || changedArchers.contains(nearestArcherID)) {
+    		return true;
+    	}
+    	MapLocation footman = footmenMap.get(footmanID);
+    	int nearestDistance = distanceBetween(footman, archersMap.get(nearestArcherID));
+    	for (int archerID : changedArchers) {
+    		if (distanceBetween(footman, archersMap.get(archerID)) <= nearestDistance) {
+    			return true;
     		}
-
-    		if (queue.isEmpty()) {
-    			queue = nextQueue;
-    			nextQueue = new LinkedList<>();
-    			step++;
+    	}
+    	return false;
+    }
+    
+    /*
+     * Returns the IDs of the units whose location or HP differ between the two states
+     */
+    private Set<Integer> changedUnits(Map<Integer, MapLocation> previousMap, Map<Integer, MapLocation> map,
+    		Map<Integer, Integer> previousHP, Map<Integer, Integer> hp) {
+    	Set<Integer> changed = new HashSet<>();
+    	if (previousMap == map && previousHP == hp) {
+    		return changed;
+    	}
+    	for (int unitID : map.keySet()) {
+    		if (!map.get(unitID).equals(previousMap.get(unitID)) || !hp.get(unitID).equals(previousHP.get(unitID))) {
+    			changed.add(unitID);
     		}
     	}
-
-    	return Integer.MAX_VALUE;
+    	return changed;
+    }
+    
+    /*
+     * Number of steps from the footman to the archer around the trees, cached per archer cell by the
+     * DistanceOracle shared by the whole search
+     */
+    public int minimumStepCount(MapLocation archer, MapLocation footman) {
+    	return minimumStepCount(archer.x, archer.y, footman.x, footman.y);
+    }
+    
+    int minimumStepCount(int archerX, int archerY, int footmanX, int footmanY) {
+    	return distances.distance(grid.cell(footmanX, footmanY), grid.cell(archerX, archerY));
     }
     
     
@@ -321,215 +551,408 @@ public class GameState {
      */
     
     public List<GameStateChild> getChildren() {
-    	
-    	//Children nodes will be different depending on if the current node is a footman
-    	if(isFootmanTurn) {
-    		return getFootmanChildren();
-    	}
-    	else {
-    		return getArcherChildren();
+    	if(children == null) {
+    		children = generateChildren();
     	}
-   
+    	return children;
     }
     
     /*
-     *  It returns a list of children of a footman with all possible actions at a specific state
+     * Generates the joint actions of the side to move and their resulting states
      */
-    private List<GameStateChild>  getFootmanChildren() {
-    	//Create an array list for children
-
+    private List<GameStateChild> generateChildren() {
     	List<GameStateChild> childrenList = new ArrayList<>();
+    	Map<Integer, MapLocation> units = isFootmanTurn ? footmenMap : archersMap;
+    	Map<Integer, Integer> unitsHP = isFootmanTurn ? footmenHP : archersHP;
+    	Map<Integer, Integer> enemiesHP = isFootmanTurn ? archersHP : footmenHP;
     	
-    	// Create an array that stores all possible directions
-    	Direction[] directions = {Direction.NORTH, Direction.EAST, Direction.SOUTH, Direction.WEST};
+    	//Collect the legal actions of every living unit of the side to move, best first, capped at maxActionsPerUnit
+    	List<Integer> unitIDs = new ArrayList<>();
+    	List<List<UnitOption>> unitOptions = new ArrayList<>();
+    	for(Integer unitID : units.keySet()) {
+    		if(unitsHP.get(unitID) <= 0) {
+    			continue;
+    		}
+    		List<UnitOption> options = getUnitOptions(unitID);
+    		if(!options.isEmpty()) {
+    			unitIDs.add(unitID);
+    			unitOptions.add(options);
+    		}
+    	}
+    	if(unitIDs.isEmpty()) {
+    		return childrenList;
+    	}
     	
-    	//Convert all footmanID to an array
-    	Integer[] footmenID = new Integer[2];
+    	addJointChildren(unitIDs, unitOptions, 0, new UnitOption[unitIDs.size()], new HashSet<>(), enemiesHP, childrenList);
+    	return removeDuplicateChildren(childrenList);
+    }
+    
+    /*
+     * Keeps the first child of every canonical position. Joint actions that only swap which of two
+     * interchangeable units goes where lead to the same canonical position and are searched once.
+     * The kept child still carries the actions of the real unit IDs
+     */
+    private List<GameStateChild> removeDuplicateChildren(List<GameStateChild> childrenList) {
+    	Set<PositionKey> seen = new HashSet<>();
+    	List<GameStateChild> unique = new ArrayList<>(childrenList.size());
+    	for(GameStateChild child : childrenList) {
+    		if(seen.add(child.state.getCanonicalKey())) {
+    			unique.add(child);
+    		}
+    	}
+    	return unique;
+    }
+    
+    /*
+     * Returns the canonical key of this state, computed on first use
+     */
+    public PositionKey getCanonicalKey() {
+    	if(canonicalKey == null) {
+    		canonicalKey = new PositionKey(isFootmanTurn, packUnits(footmenMap, footmenHP), packUnits(archersMap, archersHP));
+    	}
+    	return canonicalKey;
+    }
+    
+    private long[] packUnits(Map<Integer, MapLocation> units, Map<Integer, Integer> unitsHP) {
+    	long[] packed = new long[units.size()];
     	int index = 0;
-    	for(int footmanID : footmenMap.keySet()) {
-    		footmenID[index] = footmanID;
-    		index ++;
+    	for(Map.Entry<Integer, MapLocation> unit : units.entrySet()) {
+    		packed[index++] = PositionKey.packUnit(unit.getValue().getX(), unit.getValue().getY(), unitsHP.get(unit.getKey()));
     	}
-
-    	/*
-    	 * For each direction create an action for the first footman
-    	 */
-    		for(Direction direction : directions) {
-    	    	Map<Integer, Action> actionMap = new HashMap<>();
-				Map<Integer, MapLocation> nextFootmenMap = copyMap(footmenMap);
-				Map<Integer, Integer> nextArchersHP = copyMap(archersHP);
-    			int x = footmenMap.get(footmenID[0]).getX() + direction.xComponent();
-    			int y = footmenMap.get(footmenID[0]).getY() + direction.yComponent();
-
-    			MapLocation nextMapLocation = new MapLocation(x ,y); //This is the next map location the footman is intened to move to
-    			
-    			//If nothing is in the next map location and it stays within the map extent
-    			// add move action and update the next state
-    			if(isValidMove(nextMapLocation))
-    			{
-    				actionMap.put(footmenID[0], Action.createPrimitiveMove(footmenID[0], direction));
-    				nextFootmenMap.put(footmenID[0], nextMapLocation);
-    			}
-    			else {
-        			//if an archer exists at the next map location
-        			//add attack action and update the next state
-        			for(Integer archerID :archersMap.keySet()) {
-        				if(archersMap.get(archerID).equals(nextMapLocation)) {
-        					actionMap.put(footmenID[0], Action.createPrimitiveAttack(footmenID[0], archerID));
-        					nextArchersHP.put(archerID, archersHP.get(archerID) - 5);
-        				}
-        			}
-    			}
-    			
-    			/*
-    			 * If the second footman exists, create a move action for each direction
-    			 */
-    			if(footmenID[1] != null) {
-	    			for(Direction direction2 : directions) {
-	        	    	Map<Integer, Action> actionMap2 = copyMap(actionMap);
-	    				Map<Integer, MapLocation> nextFootmenMap2 = copyMap(nextFootmenMap);
-	    				Map<Integer, Integer> nextArchersHP2 = copyMap(nextArchersHP);
-	    				int x2 = footmenMap.get(footmenID[1]).getX() + direction2.xComponent();
-	        			int y2 = footmenMap.get(footmenID[1]).getY() + direction2.yComponent();
-	
-	        			MapLocation nextMapLocation2 = new MapLocation(x2 ,y2); //This is the next map location the footman is intented to move to
-	        			
-	        			
-	        			if(isValidMove(nextMapLocation2)) 
-	            			{
-	            				actionMap2.put(footmenID[1], Action.createPrimitiveMove(footmenID[1], direction2));
-	            				nextFootmenMap2.put(footmenID[1], nextMapLocation2);
-	            			}
-	        			else {
-		        			//if an archer exists at the next map location
-		        			//add attack action and update the next state
-		        			for(Integer archerID :archersMap.keySet()) {
-		        				if(archersMap.get(archerID).equals(nextMapLocation2)) {
-		        					actionMap.put(footmenID[1], Action.createPrimitiveAttack(footmenID[1], archerID));
-		        					nextArchersHP2.put(archerID, archersHP.get(archerID) - 5);
-		        				}
-		        			}
-	        			}
-	        		//	System.out.println(direction + " : " + direction2 +  " : " );
-	        		//	System.out.println("First footman = " + nextFootmenMap2.get(footmenID[0]).getX() + " : "  + nextFootmenMap2.get(footmenID[0]).getY());
-	        		//	System.out.println("Secondfootman = " + nextFootmenMap2.get(footmenID[1]).getX() + " : "  + nextFootmenMap2.get(footmenID[1]).getY());
-	        			
-	        			// For each possible actions, add to the children list
-	        			if(!actionMap2.isEmpty()) {
-		        			childrenList.add(new GameStateChild(actionMap2, new GameState(this, nextFootmenMap2, archersMap, footmenHP, nextArchersHP2)));
-	        			}
-		        		//	System.out.println(new GameState(this, nextFootmenMap2, archersMap, footmenHP, nextArchersHP2).getUtility());
-	    			}
-    			}
-    			
-    			//If the second footman does not exist, add the actions of the first footman to the list
-    			else {
-    				if(!actionMap.isEmpty()) {
-        				childrenList.add(new GameStateChild(actionMap, new GameState(this, nextFootmenMap, archersMap, footmenHP, nextArchersHP)));
+    	return packed;
+    }
+    
+    /*
+     * Abstraction for one legal action of a single unit. A move has a destination, an attack has a target
+     */
+    class UnitOption {
+    	private Action action;
+    	private MapLocation destination;
+    	private Integer targetID;
+    	private int rank;
+    	
+    	public UnitOption(Action action, MapLocation destination, Integer targetID, int rank) {
+    		this.action = action;
+    		this.destination = destination;
+    		this.targetID = targetID;
+    		this.rank = rank;
+    	}
+    }
+    
+    /*
+     * Returns the legal actions of a unit of the side to move, sorted by a cheap rank and cut to maxActionsPerUnit.
+     * Attacks rank first. Footmen prefer moves that get closer to the nearest archer,
+     * archers prefer moves that get farther from the nearest footman.
+     */
+    private List<UnitOption> getUnitOptions(int unitID) {
+    	List<UnitOption> options = new ArrayList<>();
+    	Map<Integer, MapLocation> units = isFootmanTurn ? footmenMap : archersMap;
+    	Map<Integer, MapLocation> enemies = isFootmanTurn ? archersMap : footmenMap;
+    	Map<Integer, Integer> enemiesHP = isFootmanTurn ? archersHP : footmenHP;
+    	MapLocation location = units.get(unitID);
+    	
+    	for(Integer enemyID : enemies.keySet()) {
+    		if(enemiesHP.get(enemyID) > 0 && isInAttackRange(location, enemies.get(enemyID))) {
+    			options.add(new UnitOption(ActionCache.attack(unitID, enemyID), null, enemyID, Integer.MIN_VALUE));
+    		}
+    	}
+    	for(Direction direction : DIRECTIONS) {
+    		int x = location.getX() + direction.xComponent();
+    		int y = location.getY() + direction.yComponent();
+    		if(grid.inBounds(x, y) && isValidMove(location(x, y))) {
+    			MapLocation nextLocation = location(x, y);
+    			int nearest = nearestDistance(nextLocation, enemies, enemiesHP);
+    			int rank = isFootmanTurn ? nearest : -nearest;
+    			options.add(new UnitOption(ActionCache.move(unitID, direction), nextLocation, null, rank));
+    		}
+    	}
+    	
+    	if(options.size() > maxActionsPerUnit) {
+    		options.sort((o1, o2) -> Integer.compare(o1.rank, o2.rank));
+    		options = new ArrayList<>(options.subList(0, maxActionsPerUnit));
+    	}
+    	return options;
+    }
+    
+    /*
+     * Chooses an option for the unit at the given index and recurses into the next unit. Two units may not move
+     * to the same cell, so such combinations are pruned as soon as the second unit picks the cell.
+     * Once every unit has an option, the joint action and its resulting state are added to the children.
+     */
+    private void addJointChildren(List<Integer> unitIDs, List<List<UnitOption>> unitOptions, int index,
+    		UnitOption[] chosen, Set<MapLocation> destinations, Map<Integer, Integer> enemiesHP, List<GameStateChild> childrenList) {
+    	if(index == unitIDs.size()) {
+    		childrenList.add(createJointChild(unitIDs, chosen, enemiesHP));
+    		return;
+    	}
+    	for(UnitOption option : unitOptions.get(index)) {
+    		if(option.destination != null && !destinations.add(option.destination)) {
+    			continue;
+    		}
+    		chosen[index] = option;
+    		addJointChildren(unitIDs, unitOptions, index + 1, chosen, destinations, enemiesHP, childrenList);
+    		if(option.destination != null) {
+    			destinations.remove(option.destination);
+    		}
+    	}
+    }
+    
+    /*
+     * Applies a complete joint action to copies of the maps of this state
+     */
+    private GameStateChild createJointChild(List<Integer> unitIDs, UnitOption[] chosen, Map<Integer, Integer> enemiesHP) {
+    	Map<Integer, Action> actionMap = new HashMap<>();
+    	Map<Integer, MapLocation> nextUnitsMap = copyMap(isFootmanTurn ? footmenMap : archersMap);
+    	Map<Integer, Integer> nextEnemiesHP = copyMap(enemiesHP);
+    	for(int i = 0; i < unitIDs.size(); i++) {
+    		UnitOption option = chosen[i];
+    		actionMap.put(unitIDs.get(i), option.action);
+    		if(option.destination != null) {
+    			nextUnitsMap.put(unitIDs.get(i), option.destination);
+    		}
+    		else {
+    			nextEnemiesHP.put(option.targetID, nextEnemiesHP.get(option.targetID) - ATTACK_DAMAGE);
+    		}
+    	}
+    	GameState next = isFootmanTurn
+    			? new GameState(this, nextUnitsMap, archersMap, footmenHP, nextEnemiesHP)
+    			: new GameState(this, footmenMap, nextUnitsMap, nextEnemiesHP, archersHP);
+    	return new GameStateChild(actionMap, next);
+    }
+    
+    /*
+     * Manhattan distance from a location to the nearest living unit of the given map
+     */
+    private int nearestDistance(MapLocation location, Map<Integer, MapLocation> units, Map<Integer, Integer> unitsHP) {
+    	int nearest = Integer.MAX_VALUE;
+    	for(Integer unitID : units.keySet()) {
+    		if(unitsHP.get(unitID) > 0) {
+    			nearest = Math.min(nearest, distanceBetween(location, units.get(unitID)));
+    		}
+    	}
+    	return nearest;
+    }
+    
+    /*
+     * Returns a single child in which every living unit of the side to move picks one action at random,
+     * or its best ranked action with probability greedyRate. Units whose actions all collide with the
+     * units before them stay idle. Returns null if no unit can act. Used by the playouts of the tree search
+     */
+    public GameStateChild getRandomChild(Random random, double greedyRate) {
+    	Map<Integer, MapLocation> units = isFootmanTurn ? footmenMap : archersMap;
+    	Map<Integer, Integer> unitsHP = isFootmanTurn ? footmenHP : archersHP;
+    	List<Integer> unitIDs = new ArrayList<>();
+    	List<UnitOption> chosen = new ArrayList<>();
+    	Set<MapLocation> destinations = new HashSet<>();
+    	for(Integer unitID : units.keySet()) {
+    		if(unitsHP.get(unitID) <= 0) {
+    			continue;
+    		}
+    		List<UnitOption> options = new ArrayList<>();
+    		UnitOption best = null;
+    		for(UnitOption option : getUnitOptions(unitID)) {
+    			if(option.destination == null || !destinations.contains(option.destination)) {
+    				options.add(option);
+    				if(best == null || option.rank < best.rank) {
+    					best = option;
     				}
     			}
     		}
-    	return childrenList;
+    		if(options.isEmpty()) {
+    			continue;
+    		}
+    		UnitOption option = random.nextDouble() < greedyRate ? best : options.get(random.nextInt(options.size()));
+    		if(option.destination != null) {
+    			destinations.add(option.destination);
+    		}
+    		unitIDs.add(unitID);
+    		chosen.add(option);
+    	}
+    	if(unitIDs.isEmpty()) {
+    		return null;
+    	}
+    	return createJointChild(unitIDs, chosen.toArray(new UnitOption[0]), isFootmanTurn ? archersHP : footmenHP);
+    }
+    
+    /*
+     * Returns the child in which the side to move passes: no unit acts and the turn goes to the other side
+     */
+    public GameStateChild getNullMoveChild() {
+    	return new GameStateChild(new HashMap<>(), new GameState(this, footmenMap, archersMap, footmenHP, archersHP));
+    }
+    
+    /*
+     * The game is over when either side has no living unit left
+     */
+    public boolean isTerminal() {
+    	return !hasLivingUnit(footmenHP) || !hasLivingUnit(archersHP);
+    }
+    
+    /*
+     * Returns true if all the archers are dead, i.e. the footmen won
+     */
+    public boolean isFootmenWin() {
+    	return !hasLivingUnit(archersHP);
+    }
+    
+    private boolean hasLivingUnit(Map<Integer, Integer> unitsHP) {
+    	for(int hp : unitsHP.values()) {
+    		if(hp > 0) {
+    			return true;
+    		}
+    	}
+    	return false;
+    }
+    
+    public boolean isFootmanTurn() {
+    	return isFootmanTurn;
+    }
+    
+    public int getXExtent() {
+    	return XExtent;
+    }
+    
+    public int getYExtent() {
+    	return YExtent;
+    }
+    
+    public int getArcherRange() {
+    	return archerRange;
+    }
+    
+    public static int getAttackDamage() {
+    	return ATTACK_DAMAGE;
+    }
+    
+    public boolean isTree(int x, int y) {
+    	return grid.inBounds(x, y) && trees.get(grid.cell(x, y));
+    }
+    
+    /*
+     * Read-only views of the unit positions and HP, keyed by unit ID
+     */
+    public Map<Integer, MapLocation> getFootmenLocations() {
+    	return Collections.unmodifiableMap(footmenMap);
+    }
+    
+    public Map<Integer, MapLocation> getArchersLocations() {
+    	return Collections.unmodifiableMap(archersMap);
+    }
+    
+    public Map<Integer, Integer> getFootmenHP() {
+    	return Collections.unmodifiableMap(footmenHP);
+    }
+    
+    public Map<Integer, Integer> getArchersHP() {
+    	return Collections.unmodifiableMap(archersHP);
+    }
+    
+    /*
+     * Returns true if both states have the same side to move and the same unit positions and HP
+     */
+    public boolean isSamePosition(GameState other) {
+    	return isFootmanTurn == other.isFootmanTurn &&
+    			footmenMap.equals(other.footmenMap) &&
+    			archersMap.equals(other.archersMap) &&
+    			footmenHP.equals(other.footmenHP) &&
+    			archersHP.equals(other.archersHP);
+    }
+    
+    /*
+     * Caps the number of actions generated per unit, keeping the best ranked ones.
+     * The cap is inherited by every state built from this one
+     */
+    public void setMaxActionsPerUnit(int maxActionsPerUnit) {
+    	this.maxActionsPerUnit = maxActionsPerUnit;
     }
     
     /*
-     *  It returns a list of children of a footman with all possible actions at a specific state
+     * Returns the children in which every unit of the side to move that can attack does attack, and the
+     * units that cannot attack stay idle. These are the only children the quiescence search expands.
+     * The list is empty when no living unit of the side to move has a living enemy in range, i.e. the
+     * position is quiet.
      */
-    private List<GameStateChild>  getArcherChildren() {
-    	//Create an array list for children
+    public List<GameStateChild> getAttackChildren() {
     	List<GameStateChild> childrenList = new ArrayList<>();
+    	Map<Integer, MapLocation> attackers = isFootmanTurn ? footmenMap : archersMap;
+    	Map<Integer, Integer> attackersHP = isFootmanTurn ? footmenHP : archersHP;
+    	Map<Integer, MapLocation> targets = isFootmanTurn ? archersMap : footmenMap;
+    	Map<Integer, Integer> targetsHP = isFootmanTurn ? archersHP : footmenHP;
     	
-    	// Create an array that stores all possible directions
-    	Direction[] directions = {Direction.NORTH, Direction.EAST, Direction.SOUTH, Direction.WEST};
-    	List<Map<Integer, MapLocation>> archersMapList = new ArrayList<Map<Integer, MapLocation>>();
-    	List<Map<Integer, Integer>> footmenHPList = new ArrayList<Map<Integer, Integer>>();
-    	
-    	Integer[] archersID = new Integer[2];
-    	int index = 0;
-    	for(int archerID : archersMap.keySet()) {
-    		archersID[index] = archerID;
-    		index ++;
-    	}
-
-    		for(Direction direction : directions) {
-				Map<Integer, MapLocation> nextArchersMap = copyMap(archersMap);
-				Map<Integer, Integer> nextFootmenHP = copyMap(footmenHP);
-    			int x = archersMap.get(archersID[0]).getX() + direction.xComponent();
-    			int y = archersMap.get(archersID[0]).getY() + direction.yComponent();
-
-    			MapLocation nextMapLocation = new MapLocation(x ,y); //This is the next map location the archer is intened to move to
-    			
-    			//If nothing is in the next map location and it stays within the map extent
-    			// add move action and update the next state
-    			if(isValidMove(nextMapLocation))
-    			{
-    				nextArchersMap.put(archersID[0], nextMapLocation);
-        			archersMapList.add(nextArchersMap);
-        	    	footmenHPList.add(nextFootmenHP);
-    			}
-
-
+    	//Find every target in range of each attacker
+    	List<Integer> attackerIDs = new ArrayList<>();
+    	List<List<Integer>> targetIDs = new ArrayList<>();
+    	for(Integer attackerID : attackers.keySet()) {
+    		if(attackersHP.get(attackerID) <= 0) {
+    			continue;
     		}
-			//If there exists footman that is in the range of the archers' attack (Within 10 units away)
-    		//Create an attack action
-				for(Integer footmanID : footmenMap.keySet()) {
-					Map<Integer, MapLocation> nextArchersMap = copyMap(archersMap);
-					Map<Integer, Integer> nextFootmenHP = copyMap(footmenHP);
-					if((Math.abs(archersMap.get(archersID[0]).getX() - footmenMap.get(footmanID).getX()) <= 10) ||
-    					(Math.abs(archersMap.get(archersID[0]).getY() - footmenMap.get(footmanID).getY()) <= 10)) {
-		    	    	nextFootmenHP.put(footmanID, footmenHP.get(footmanID) -5);
-		    			archersMapList.add(nextArchersMap);
-		    	    	footmenHPList.add(nextFootmenHP);
-					}
-				}
-    		
-				
-				//If the second archer exists, repeats the previous step and add it to the action map
-    			if(archersID[1] != null) {
-	    			for(Direction direction2 : directions) {
-	    				int x2 = archersMap.get(archersID[1]).getX() + direction2.xComponent();
-	        			int y2 = archersMap.get(archersID[1]).getY() + direction2.yComponent();
-	
-	        			MapLocation nextMapLocation2 = new MapLocation(x2 ,y2);
-	        			
-	        			
-	        			if(isValidMove(nextMapLocation2)){
-	        				for(Map<Integer, MapLocation> nextArchersMap : archersMapList) {
-	            				nextArchersMap.put(archersID[1], nextMapLocation2);
-	        				}
-	            		}
-	    			}
-	    			
-	    				for(Integer footmanID : footmenMap.keySet()) {
-	    					if((Math.abs(archersMap.get(archersID[1]).getX() - footmenMap.get(footmanID).getX()) <= 10) ||
-	    						(Math.abs(archersMap.get(archersID[1]).getY() - footmenMap.get(footmanID).getY()) <= 10)) {
-		        				for(Map<Integer, Integer> nextfootmanHP : footmenHPList) {
-		        					nextfootmanHP.put(footmanID, nextfootmanHP.get(footmanID) -5);
-		        				}
-	    					}
-	    				}
-    			}
-    			
-    			//Note here both lists have the same length and each element at the same index matches to each other and together forms the next state
-    			int listIndex = 0;
-    			while(listIndex < footmenHPList.size()) {
-        			childrenList.add(new GameStateChild(null, new GameState(this, footmenMap, archersMapList.get(listIndex), footmenHPList.get(listIndex), archersHP)));
-        			listIndex ++;
+    		List<Integer> inRange = new ArrayList<>();
+    		for(Integer targetID : targets.keySet()) {
+    			if(targetsHP.get(targetID) > 0 && isInAttackRange(attackers.get(attackerID), targets.get(targetID))) {
+    				inRange.add(targetID);
     			}
+    		}
+    		if(!inRange.isEmpty()) {
+    			attackerIDs.add(attackerID);
+    			targetIDs.add(inRange);
+    		}
+    	}
+    	
+    	if(!attackerIDs.isEmpty()) {
+    		addAttackChildren(attackerIDs, targetIDs, 0, new HashMap<>(), targetsHP, childrenList);
+    	}
     	return childrenList;
     }
     
+    /*
+     * Adds one child for every combination of targets of the attackers from the given index on
+     */
+    private void addAttackChildren(List<Integer> attackerIDs, List<List<Integer>> targetIDs, int index,
+    		Map<Integer, Action> actionMap, Map<Integer, Integer> nextTargetsHP, List<GameStateChild> childrenList) {
+    	if(index == attackerIDs.size()) {
+    		GameState next = isFootmanTurn
+    				? new GameState(this, footmenMap, archersMap, footmenHP, nextTargetsHP)
+    				: new GameState(this, footmenMap, archersMap, nextTargetsHP, archersHP);
+    		childrenList.add(new GameStateChild(actionMap, next));
+    		return;
+    	}
+    	int attackerID = attackerIDs.get(index);
+    	for(Integer targetID : targetIDs.get(index)) {
+    		Map<Integer, Action> nextActionMap = copyMap(actionMap);
+    		Map<Integer, Integer> nextHP = copyMap(nextTargetsHP);
+    		nextActionMap.put(attackerID, ActionCache.attack(attackerID, targetID));
+    		nextHP.put(targetID, nextTargetsHP.get(targetID) - ATTACK_DAMAGE);
+    		addAttackChildren(attackerIDs, targetIDs, index + 1, nextActionMap, nextHP, childrenList);
+    	}
+    }
+    
+    /*
+     * A footman attacks an archer it could step onto, an archer attacks any footman within its range
+     */
+    private boolean isInAttackRange(MapLocation attacker, MapLocation target) {
+    	if(isFootmanTurn) {
+    		return distanceBetween(attacker, target) == 1;
+    	}
+    	//No archer reaches a cell outside the threat map, otherwise one bit test for this archer
+    	int targetCell = grid.cell(target.x, target.y);
+    	return getThreats().get(targetCell) && archerReach.inRange(grid.cell(attacker.x, attacker.y), targetCell);
+    }
+    
     private boolean isValidMove(MapLocation nextLocation) {
     	int x = nextLocation.getX();
     	int y = nextLocation.getY();
-    	return (x >= 0 &&
-				x <= XExtent &&
-				y >= 0 &&
-			    y <= YExtent && 
-			   !trees.contains(nextLocation) &&
+    	return (grid.inBounds(x, y) &&
+			   !trees.get(grid.cell(x, y)) &&
 			   !archersMap.containsValue(nextLocation)&&
     		   !footmenMap.containsValue(nextLocation));
     }
+    /*
+     * The interned location of a cell inside the map
+     */
+    private MapLocation location(int x, int y) {
+    	return locations[grid.cell(x, y)];
+    }
+    
     /*
      * Copy a map 
      */
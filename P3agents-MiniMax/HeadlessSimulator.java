@@ -0,0 +1,489 @@
+package edu.cwru.sepia.agent.minimax;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SplittableRandom;
+
+/**
+ * A standalone footmen-versus-archers simulator that needs no SEPIA runtime.
+ *
+ * It follows the same rules as GameState.getChildren(): units move one cell in the four cardinal
+ * directions, cannot move out of the map, onto a tree, onto a cell occupied at the start of the turn (even if
+ * its unit moves away during the turn) or onto a cell already taken by a unit moving earlier in the same turn. Footmen attack adjacent archers, archers attack footmen within
+ * their range (Chebyshev distance), and every attack deals the same damage. Unlike GameState, dead units
+ * are removed from the map as in SEPIA, so they no longer block cells.
+ *
+ * For the path finding maps of AstarAgent the simulator also has diagonal moves, which the policies
+ * below never use, and townhalls: enemy units that never act and that a footman attacks from any of the
+ * eight cells around them.
+ *
+ * The whole state is held in primitive arrays indexed by cell (y * width + x) or by unit index, so a turn
+ * allocates nothing and an episode can be reset and replayed in place.
+ *
+ * Map descriptions are text files. Lines starting with # are comments, name=value lines set the unit
+ * statistics (footmanHP, archerHP, townhallHP, archerRange, damage) and every other line is a row of the grid:
+ * '.' empty, 'T' tree, 'F' footman, 'A' archer, 'H' townhall. Units are numbered in reading order.
+ */
+public class HeadlessSimulator {
+
+	/*
+	 * Per-unit action codes. A value of ATTACK + i attacks unit i
+	 */
+	public static final int IDLE = -1;
+	public static final int NORTH = 0;
+	public static final int EAST = 1;
+	public static final int SOUTH = 2;
+	public static final int WEST = 3;
+	public static final int NORTHEAST = 4;
+	public static final int SOUTHEAST = 5;
+	public static final int SOUTHWEST = 6;
+	public static final int NORTHWEST = 7;
+	public static final int ATTACK = 8;
+
+	private static final int[] DX = {0, 1, 0, -1, 1, 1, -1, -1};
+	private static final int[] DY = {-1, 0, 1, 0, -1, 1, 1, -1};
+
+	/*
+	 * Unit kinds
+	 */
+	public static final int FOOTMAN = 0;
+	public static final int ARCHER = 1;
+	public static final int TOWNHALL = 2;
+
+	/**
+	 * Chooses the actions of the side to move, one action code per unit index.
+	 * Units of the other side and dead units are ignored
+	 */
+	public interface Policy {
+		void chooseActions(HeadlessSimulator simulator, int[] actions);
+	}
+
+	private final int width;
+	private final int height;
+	private final boolean[] trees;
+	private final int footmanHP;
+	private final int archerHP;
+	private final int townhallHP;
+	private final int archerRange;
+	private final int damage;
+
+	private final int unitCount;
+	private final int[] kind;
+	private final int[] initialX;
+	private final int[] initialY;
+
+	private final int[] unitX;
+	private final int[] unitY;
+	private final int[] unitHP;
+	private final int[] occupant; // unit index at each cell, -1 if empty
+	private final boolean[] moving; // scratch of step: the units whose move was accepted this turn
+	private boolean footmanTurn;
+	private int turn;
+
+	private HeadlessSimulator(int width, int height, boolean[] trees, int footmanHP, int archerHP, int townhallHP, int archerRange,
+			int damage, int[] kind, int[] initialX, int[] initialY) {
+		this.width = width;
+		this.height = height;
+		this.trees = trees;
+		this.footmanHP = footmanHP;
+		this.archerHP = archerHP;
+		this.townhallHP = townhallHP;
+		this.archerRange = archerRange;
+		this.damage = damage;
+		this.unitCount = kind.length;
+		this.kind = kind;
+		this.initialX = initialX;
+		this.initialY = initialY;
+		this.unitX = new int[unitCount];
+		this.unitY = new int[unitCount];
+		this.unitHP = new int[unitCount];
+		this.occupant = new int[width * height];
+		this.moving = new boolean[unitCount];
+		reset();
+	}
+
+	/**
+	 * Loads a map description file
+	 */
+	public static HeadlessSimulator load(Path file) throws IOException {
+		return parse(Files.readAllLines(file));
+	}
+
+	/**
+	 * Parses the lines of a map description
+	 */
+	public static HeadlessSimulator parse(List<String> lines) {
+		int footmanHP = 160;
+		int archerHP = 50;
+		int townhallHP = 800;
+		int archerRange = 8;
+		int damage = 5;
+		List<String> rows = new ArrayList<>();
+		for(String line : lines) {
+			line = line.trim();
+			if(line.isEmpty() || line.startsWith("#")) {
+				continue;
+			}
+			int split = line.indexOf('=');
+			if(split == -1) {
+				rows.add(line);
+				continue;
+			}
+			String name = line.substring(0, split).trim();
+			int value = Integer.parseInt(line.substring(split + 1).trim());
+			switch(name) {
+				case "footmanHP": footmanHP = value; break;
+				case "archerHP": archerHP = value; break;
+				case "townhallHP": townhallHP = value; break;
+				case "archerRange": archerRange = value; break;
+				case "damage": damage = value; break;
+				default: throw new IllegalArgumentException("Unknown map property: " + name);
+			}
+		}
+		if(rows.isEmpty()) {
+			throw new IllegalArgumentException("Map has no grid rows");
+		}
+
+		int width = rows.get(0).length();
+		int height = rows.size();
+		boolean[] trees = new boolean[width * height];
+		List<int[]> units = new ArrayList<>(); // {x, y, kind}
+		for(int y = 0; y < height; y++) {
+			String row = rows.get(y);
+			if(row.length() != width) {
+				throw new IllegalArgumentException("Map row " + y + " has length " + row.length() + ", expected " + width);
+			}
+			for(int x = 0; x < width; x++) {
+				switch(row.charAt(x)) {
+					case '.': break;
+					case 'T': trees[y * width + x] = true; break;
+					case 'F': units.add(new int[] {x, y, FOOTMAN}); break;
+					case 'A': units.add(new int[] {x, y, ARCHER}); break;
+					case 'H': units.add(new int[] {x, y, TOWNHALL}); break;
+					default: throw new IllegalArgumentException("Unknown map cell '" + row.charAt(x) + "' at " + x + ", " + y);
+				}
+			}
+		}
+
+		int[] kind = new int[units.size()];
+		int[] initialX = new int[units.size()];
+		int[] initialY = new int[units.size()];
+		for(int i = 0; i < units.size(); i++) {
+			initialX[i] = units.get(i)[0];
+			initialY[i] = units.get(i)[1];
+			kind[i] = units.get(i)[2];
+		}
+		return new HeadlessSimulator(width, height, trees, footmanHP, archerHP, townhallHP, archerRange, damage, kind, initialX, initialY);
+	}
+
+	/**
+	 * Puts every unit back to its initial position and HP, footmen to move
+	 */
+	public void reset() {
+		Arrays.fill(occupant, -1);
+		for(int i = 0; i < unitCount; i++) {
+			unitX[i] = initialX[i];
+			unitY[i] = initialY[i];
+			unitHP[i] = kind[i] == FOOTMAN ? footmanHP : kind[i] == ARCHER ? archerHP : townhallHP;
+			occupant[unitY[i] * width + unitX[i]] = i;
+		}
+		footmanTurn = true;
+		turn = 0;
+	}
+
+	/**
+	 * Copies the current state of another simulator of the same map into this one
+	 */
+	public void copyFrom(HeadlessSimulator other) {
+		System.arraycopy(other.unitX, 0, unitX, 0, unitCount);
+		System.arraycopy(other.unitY, 0, unitY, 0, unitCount);
+		System.arraycopy(other.unitHP, 0, unitHP, 0, unitCount);
+		System.arraycopy(other.occupant, 0, occupant, 0, occupant.length);
+		footmanTurn = other.footmanTurn;
+		turn = other.turn;
+	}
+
+	/**
+	 * Returns a new simulator of the same map in the same state
+	 */
+	public HeadlessSimulator copy() {
+		HeadlessSimulator copy = new HeadlessSimulator(width, height, trees, footmanHP, archerHP, townhallHP, archerRange, damage,
+				kind, initialX, initialY);
+		copy.copyFrom(this);
+		return copy;
+	}
+
+	/**
+	 * Applies one action per unit index for the side to move, then passes the turn.
+	 * Units act in index order; an illegal action (blocked move, target out of range or dead) is skipped.
+	 * Every move is checked against the cells occupied at the start of the turn, so a unit never follows
+	 * another one into the cell it leaves, and a unit killed this turn frees its cell only for the next turn.
+	 * A turn is counted after the archers have moved.
+	 */
+	public void step(int[] actions) {
+		//First claim the destinations of the legal moves, while the units still hold their cells
+		for(int i = 0; i < unitCount; i++) {
+			int action = actions[i];
+			moving[i] = canAct(i) && action >= NORTH && action < ATTACK && canMove(i, action);
+			if(moving[i]) {
+				occupant[(unitY[i] + DY[action]) * width + unitX[i] + DX[action]] = i;
+			}
+		}
+		for(int i = 0; i < unitCount; i++) {
+			if(!canAct(i)) {
+				continue;
+			}
+			int action = actions[i];
+			if(action >= ATTACK) {
+				int target = action - ATTACK;
+				if(canAttack(i, target)) {
+					unitHP[target] -= damage;
+					if(unitHP[target] <= 0) {
+						occupant[unitY[target] * width + unitX[target]] = -1;
+					}
+				}
+			}
+			else if(moving[i]) {
+				occupant[unitY[i] * width + unitX[i]] = -1;
+				unitX[i] += DX[action];
+				unitY[i] += DY[action];
+			}
+		}
+		if(!footmanTurn) {
+			turn++;
+		}
+		footmanTurn = !footmanTurn;
+	}
+
+	/**
+	 * Returns true if the unit can move one cell in the given direction code
+	 */
+	public boolean canMove(int unit, int direction) {
+		int x = unitX[unit] + DX[direction];
+		int y = unitY[unit] + DY[direction];
+		return x >= 0 && x < width && y >= 0 && y < height && !trees[y * width + x] && occupant[y * width + x] == -1;
+	}
+
+	/**
+	 * Returns true if the unit is alive and can attack the target, a living unit of the other side
+	 */
+	public boolean canAttack(int unit, int target) {
+		if(target < 0 || target >= unitCount || unitHP[unit] <= 0 || unitHP[target] <= 0 ||
+				kind[unit] == TOWNHALL || isFootman(unit) == isFootman(target)) {
+			return false;
+		}
+		int dx = Math.abs(unitX[unit] - unitX[target]);
+		int dy = Math.abs(unitY[unit] - unitY[target]);
+		if(kind[target] == TOWNHALL) {
+			return Math.max(dx, dy) == 1;
+		}
+		if(kind[unit] == FOOTMAN) {
+			return dx + dy == 1;
+		}
+		return Math.max(dx, dy) <= archerRange;
+	}
+
+	/**
+	 * Plays from the current state until one side is dead or maxTurns turns have been played
+	 *
+	 * @return 1 if the footmen won, -1 if the archers won, 0 if the turn limit was reached
+	 */
+	public int runEpisode(Policy footmen, Policy archers, int maxTurns, int[] actions) {
+		while(!isTerminal() && turn < maxTurns) {
+			Arrays.fill(actions, IDLE);
+			(footmanTurn ? footmen : archers).chooseActions(this, actions);
+			step(actions);
+		}
+		if(!isTerminal()) {
+			return 0;
+		}
+		return isFootmenWin() ? 1 : -1;
+	}
+
+	public boolean isTerminal() {
+		return !hasLivingUnit(true) || !hasLivingUnit(false);
+	}
+
+	public boolean isFootmenWin() {
+		return !hasLivingUnit(false);
+	}
+
+	private boolean hasLivingUnit(boolean footman) {
+		for(int i = 0; i < unitCount; i++) {
+			if(isFootman(i) == footman && unitHP[i] > 0) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Every living unit attacks the first enemy in range, otherwise moves in a random legal cardinal direction
+	 */
+	public static Policy randomPolicy(SplittableRandom random) {
+		return (simulator, actions) -> {
+			for(int i = 0; i < simulator.unitCount; i++) {
+				if(!simulator.canAct(i)) {
+					continue;
+				}
+				actions[i] = simulator.firstTarget(i);
+				if(actions[i] == IDLE) {
+					int first = random.nextInt(4);
+					for(int d = 0; d < 4 && actions[i] == IDLE; d++) {
+						if(simulator.canMove(i, (first + d) % 4)) {
+							actions[i] = (first + d) % 4;
+						}
+					}
+				}
+			}
+		};
+	}
+
+	/**
+	 * Every living unit attacks the first enemy in range, otherwise footmen step towards the nearest archer
+	 * and archers step away from the nearest footman
+	 */
+	public static Policy greedyPolicy() {
+		return (simulator, actions) -> {
+			for(int i = 0; i < simulator.unitCount; i++) {
+				if(!simulator.canAct(i)) {
+					continue;
+				}
+				actions[i] = simulator.firstTarget(i);
+				if(actions[i] != IDLE) {
+					continue;
+				}
+				int bestDistance = simulator.nearestEnemyDistance(i, simulator.unitX[i], simulator.unitY[i]);
+				for(int d = 0; d < 4; d++) {
+					if(!simulator.canMove(i, d)) {
+						continue;
+					}
+					int distance = simulator.nearestEnemyDistance(i, simulator.unitX[i] + DX[d], simulator.unitY[i] + DY[d]);
+					if(simulator.isFootman(i) ? distance < bestDistance : distance > bestDistance) {
+						bestDistance = distance;
+						actions[i] = d;
+					}
+				}
+			}
+		};
+	}
+
+	/*
+	 * Returns the attack action on the first enemy in range of the unit, or IDLE
+	 */
+	private int firstTarget(int unit) {
+		for(int target = 0; target < unitCount; target++) {
+			if(canAttack(unit, target)) {
+				return ATTACK + target;
+			}
+		}
+		return IDLE;
+	}
+
+	/*
+	 * Manhattan distance from a cell to the nearest living enemy of the unit
+	 */
+	private int nearestEnemyDistance(int unit, int x, int y) {
+		int nearest = Integer.MAX_VALUE;
+		for(int i = 0; i < unitCount; i++) {
+			if(isFootman(i) != isFootman(unit) && kind[i] != TOWNHALL && unitHP[i] > 0) {
+				nearest = Math.min(nearest, Math.abs(unitX[i] - x) + Math.abs(unitY[i] - y));
+			}
+		}
+		return nearest;
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	public boolean isTree(int x, int y) {
+		return trees[y * width + x];
+	}
+
+	public int getArcherRange() {
+		return archerRange;
+	}
+
+	public int getUnitCount() {
+		return unitCount;
+	}
+
+	public boolean isFootman(int unit) {
+		return kind[unit] == FOOTMAN;
+	}
+
+	public int getKind(int unit) {
+		return kind[unit];
+	}
+
+	/*
+	 * Returns true if the unit is a living footman or archer of the side to move
+	 */
+	private boolean canAct(int unit) {
+		return kind[unit] != TOWNHALL && isFootman(unit) == footmanTurn && unitHP[unit] > 0;
+	}
+
+	public int getUnitX(int unit) {
+		return unitX[unit];
+	}
+
+	public int getUnitY(int unit) {
+		return unitY[unit];
+	}
+
+	public int getUnitHP(int unit) {
+		return unitHP[unit];
+	}
+
+	public boolean isFootmanTurn() {
+		return footmanTurn;
+	}
+
+	public int getTurn() {
+		return turn;
+	}
+
+	/**
+	 * Measures simulated turns per second on a map with random or greedy policies.
+	 *
+	 * Usage: HeadlessSimulator mapFile [episodes] [random|greedy]
+	 */
+	public static void main(String[] args) throws IOException {
+		if(args.length < 1) {
+			System.err.println("Usage: HeadlessSimulator mapFile [episodes] [random|greedy]");
+			System.exit(1);
+		}
+		HeadlessSimulator simulator = load(Paths.get(args[0]));
+		int episodes = args.length > 1 ? Integer.parseInt(args[1]) : 100000;
+		boolean greedy = args.length > 2 && args[2].equals("greedy");
+		SplittableRandom random = new SplittableRandom(0);
+		Policy policy = greedy ? greedyPolicy() : randomPolicy(random);
+		int[] actions = new int[simulator.getUnitCount()];
+
+		long turns = 0;
+		int footmenWins = 0;
+		long startTime = System.nanoTime();
+		for(int episode = 0; episode < episodes; episode++) {
+			simulator.reset();
+			if(simulator.runEpisode(policy, policy, 1000, actions) == 1) {
+				footmenWins++;
+			}
+			turns += simulator.getTurn();
+		}
+		double seconds = (System.nanoTime() - startTime) / 1e9;
+		System.out.println("Episodes: " + episodes);
+		System.out.println("Footmen wins: " + footmenWins);
+		System.out.println("Total turns: " + turns);
+		System.out.println("Turns per second: " + (long) (turns / seconds));
+	}
+}
@@ -0,0 +1,182 @@
+package edu.cwru.sepia.agent.minimax;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Evaluates the utility of a block of sibling states in one call.
+ *
+ * The units of every state are copied into flat arrays (struct of arrays): one block of archers per state
+ * and one row per footman whose utility term must be computed (footmen whose term can be reused from the
+ * parent are left out, see GameState.computeUtility). Each feature is then computed for all rows in its own
+ * loop over primitive arrays, instead of one leaf at a time through the HashMaps of each state, and the terms
+ * are written back so that the states keep their cached utility and their children stay incremental.
+ *
+ * The buffers are kept per thread and reused, so steady state evaluation does not allocate them again.
+ */
+public final class LeafBatch {
+
+	private static final ThreadLocal<LeafBatch> BATCH = ThreadLocal.withInitial(LeafBatch::new);
+
+	private static final int INITIAL_CAPACITY = 64;
+
+	/*
+	 * The states of the batch, and the range of their archers in the archer arrays
+	 */
+	private GameState[] states = new GameState[INITIAL_CAPACITY];
+	private int[] archerStart = new int[INITIAL_CAPACITY];
+	private int[] archerEnd = new int[INITIAL_CAPACITY];
+	private int stateCount;
+
+	/*
+	 * Archers of all states
+	 */
+	private int[] archerID = new int[INITIAL_CAPACITY];
+	private int[] archerX = new int[INITIAL_CAPACITY];
+	private int[] archerY = new int[INITIAL_CAPACITY];
+	private int[] archerHP = new int[INITIAL_CAPACITY];
+	private int archerCount;
+
+	/*
+	 * One row per footman term to compute: its state and position, then the features filled in by evaluate
+	 */
+	private int[] rowState = new int[INITIAL_CAPACITY];
+	private int[] rowFootman = new int[INITIAL_CAPACITY];
+	private int[] footmanX = new int[INITIAL_CAPACITY];
+	private int[] footmanY = new int[INITIAL_CAPACITY];
+	private int[] footmanHP = new int[INITIAL_CAPACITY];
+	private int[] nearest = new int[INITIAL_CAPACITY];
+	private int[] distance = new int[INITIAL_CAPACITY];
+	private int[] targetHP = new int[INITIAL_CAPACITY];
+	private int[] steps = new int[INITIAL_CAPACITY];
+	private double[] term = new double[INITIAL_CAPACITY];
+	private int rowCount;
+
+	private LeafBatch() {
+	}
+
+	/**
+	 * Computes and caches the utility of every child state that does not have one yet
+	 */
+	public static void evaluate(List<GameStateChild> children) {
+		LeafBatch batch = BATCH.get();
+		batch.clear();
+		for(GameStateChild child : children) {
+			child.state.addToBatch(batch);
+		}
+		batch.evaluate();
+	}
+
+	int addState(GameState state) {
+		if(stateCount == states.length) {
+			int capacity = stateCount * 2;
+			states = Arrays.copyOf(states, capacity);
+			archerStart = Arrays.copyOf(archerStart, capacity);
+			archerEnd = Arrays.copyOf(archerEnd, capacity);
+		}
+		states[stateCount] = state;
+		archerStart[stateCount] = archerCount;
+		archerEnd[stateCount] = archerCount;
+		return stateCount++;
+	}
+
+	/*
+	 * Adds an archer to the last state added
+	 */
+	void addArcher(int id, int x, int y, int hp) {
+		if(archerCount == archerID.length) {
+			int capacity = archerCount * 2;
+			archerID = Arrays.copyOf(archerID, capacity);
+			archerX = Arrays.copyOf(archerX, capacity);
+			archerY = Arrays.copyOf(archerY, capacity);
+			archerHP = Arrays.copyOf(archerHP, capacity);
+		}
+		archerID[archerCount] = id;
+		archerX[archerCount] = x;
+		archerY[archerCount] = y;
+		archerHP[archerCount] = hp;
+		archerCount++;
+		archerEnd[stateCount - 1] = archerCount;
+	}
+
+	void addRow(int state, int footmanID, int x, int y, int hp) {
+		if(rowCount == rowState.length) {
+			int capacity = rowCount * 2;
+			rowState = Arrays.copyOf(rowState, capacity);
+			rowFootman = Arrays.copyOf(rowFootman, capacity);
+			footmanX = Arrays.copyOf(footmanX, capacity);
+			footmanY = Arrays.copyOf(footmanY, capacity);
+			footmanHP = Arrays.copyOf(footmanHP, capacity);
+			nearest = Arrays.copyOf(nearest, capacity);
+			distance = Arrays.copyOf(distance, capacity);
+			targetHP = Arrays.copyOf(targetHP, capacity);
+			steps = Arrays.copyOf(steps, capacity);
+			term = Arrays.copyOf(term, capacity);
+		}
+		rowState[rowCount] = state;
+		rowFootman[rowCount] = footmanID;
+		footmanX[rowCount] = x;
+		footmanY[rowCount] = y;
+		footmanHP[rowCount] = hp;
+		rowCount++;
+	}
+
+	private void clear() {
+		stateCount = 0;
+		archerCount = 0;
+		rowCount = 0;
+	}
+
+	private void evaluate() {
+		//Nearest archer of each footman, by Manhattan distance
+		for(int row = 0; row < rowCount; row++) {
+			int state = rowState[row];
+			int best = -1;
+			int bestDistance = Integer.MAX_VALUE;
+			for(int archer = archerStart[state]; archer < archerEnd[state]; archer++) {
+				int d = Math.abs(archerX[archer] - footmanX[row]) + Math.abs(archerY[archer] - footmanY[row]);
+				if(d < bestDistance) {
+					bestDistance = d;
+					best = archer;
+				}
+			}
+			nearest[row] = best;
+			distance[row] = bestDistance;
+			targetHP[row] = best == -1 ? 0 : archerHP[best];
+		}
+
+		//Path length around the trees, the only feature that needs the map
+		for(int row = 0; row < rowCount; row++) {
+			int archer = nearest[row];
+			steps[row] = archer == -1 ? 0 : states[rowState[row]].minimumStepCount(archerX[archer], archerY[archer], footmanX[row], footmanY[row]);
+		}
+
+		//Weighted features
+		for(int row = 0; row < rowCount; row++) {
+			double d = distance[row];
+			term[row] = steps[row] * GameState.STEP_COUNT_WEIGHT
+					+ targetHP[row] * GameState.ARCHER_HP_WEIGHT
+					+ footmanHP[row] * GameState.FOOTMAN_HP_WEIGHT
+					+ d * GameState.DISTANCE_WEIGHT
+					+ Math.sqrt(d) * GameState.SQRT_DISTANCE_WEIGHT
+					+ d * d * GameState.SQUARE_DISTANCE_WEIGHT;
+		}
+		for(int row = 0; row < rowCount; row++) {
+			if(nearest[row] == -1) {
+				term[row] = 0;
+			}
+			else {
+				term[row] += Math.random() * GameState.NOISE_WEIGHT;
+			}
+		}
+
+		for(int row = 0; row < rowCount; row++) {
+			int archer = nearest[row];
+			states[rowState[row]].setFootmanTerm(rowFootman[row], archer == -1 ? null : archerID[archer], term[row]);
+		}
+		for(int state = 0; state < stateCount; state++) {
+			states[state].finishBatchUtility();
+			states[state] = null;
+		}
+	}
+}
@@ -1,60 +1,465 @@
 package edu.cwru.sepia.agent.minimax;
 
 import edu.cwru.sepia.action.Action;
+import edu.cwru.sepia.action.DirectedAction;
+import edu.cwru.sepia.action.TargetedAction;
 import edu.cwru.sepia.agent.Agent;
+import edu.cwru.sepia.agent.grid.Options;
+import edu.cwru.sepia.agent.grid.WorldDiff;
 import edu.cwru.sepia.environment.model.history.History;
 import edu.cwru.sepia.environment.model.state.State;
 
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
 
 public class MinimaxAlphaBeta extends Agent {
 
     private final int numPlys;
+    private final int maxActionsPerUnit;
+
+    /*
+     * Move ordering tables, kept for the whole episode and cleared by initialStep.
+     * killerMoves stores, for each remaining depth, the last joint actions that caused a cutoff there.
+     * historyScores accumulates depth * depth for every joint action that caused a cutoff anywhere.
+     */
+    private static final int KILLERS_PER_DEPTH = 2;
+    private final Map<Integer, List<String>> killerMoves = new HashMap<>();
+    private final Map<String, Integer> historyScores = new HashMap<>();
+
+    /*
+     * Principal variation search state.
+     * pvTable is the triangular table of joint-action keys built during a search, pvTable[ply] holding the
+     * best line found from that ply. pvSeed is the line used to order the children at each ply of the next
+     * search: the previous iteration's line or, between turns, the last line shifted by the two plys that
+     * will have been played, our move and the expected reply, which is also where pondering searches from.
+     */
+    private static final double NULL_WINDOW = 1e-6;
+    private static final double ASPIRATION_WINDOW = 2500;
+    private String[][] pvTable;
+    private int[] pvLength;
+    private List<String> pvSeed = new ArrayList<>();
+    private double lastScore;
+
+    /*
+     * Maximum number of attack-only plys the quiescence search adds below the nominal depth
+     */
+    private static final int QUIESCENCE_PLYS = 6;
+
+    /*
+     * Transposition table keyed by the canonical position, so positions reached by different move orders or
+     * that differ only by a permutation of interchangeable units are searched once. An entry holds the value
+     * found at a remaining depth, and whether it is exact or only a lower or upper bound. The table is kept
+     * across the turns of an episode and cleared at the start of each episode, when a tree is removed and
+     * when it reaches TRANSPOSITION_TABLE_SIZE entries.
+     */
+    private static final int TRANSPOSITION_TABLE_SIZE = 1 << 20;
+    private static final int EXACT = 0;
+    private static final int LOWER_BOUND = 1;
+    private static final int UPPER_BOUND = 2;
+    private transient Map<PositionKey, TranspositionEntry> transpositionTable = new HashMap<>();
+
+    /*
+     * With the "sharedTable=MB" argument, and optionally "sharedTableFile=path", the agent uses the off-heap
+     * SharedTranspositionTable instead, shared with every other agent of the JVM given the same file. Its keys
+     * include layoutHash, so it is never cleared: after a tree is removed the new map simply has new keys
+     */
+    private transient SharedTranspositionTable sharedTable;
+    private final transient SharedTranspositionTable.Probe sharedProbe = new SharedTranspositionTable.Probe();
+
+    private static class TranspositionEntry {
+    	private final int depth;
+    	private final double value;
+    	private final int bound;
+
+    	public TranspositionEntry(int depth, double value, int bound) {
+    		this.depth = depth;
+    		this.value = value;
+    		this.bound = bound;
+    	}
+    }
+
+    /*
+     * Selective search, each switched on by its own agent argument.
+     * "nullMove": before searching a node's children, let the side to move pass and search the result
+     * NULL_MOVE_REDUCTION plys shallower with a null window at the bound. If even passing beats the bound,
+     * the node is cut off. Null moves are not nested.
+     * "lmr": late move reductions, see isLateMove.
+     */
+    private static final int NULL_MOVE_REDUCTION = 2;
+    private static final int LMR_FULL_DEPTH_MOVES = 3;
+    private static final int LMR_MIN_DEPTH = 3;
+    private static final int LMR_REDUCTION = 1;
+    private final boolean nullMovePruning;
+    private final boolean lateMoveReductions;
+    private boolean nullMoveActive = false;
+
+    /*
+     * Endgame tablebase given with "tablebase=file", probed once per turn before searching. tablebaseMatches
+     * is checked at the start of every episode, and again when a tree is removed, so the tablebase is ignored
+     * on maps it was not generated for
+     */
+    private static final double TABLEBASE_WIN = 1e9;
+    private transient EndgameTablebase tablebase;
+    private boolean tablebaseMatches = false;
+
+    /*
+     * Opening book, saved and loaded as the agent's player data. The first OPENING_TURNS turns of an episode
+     * are played from the book when it has the position searched at least numPlys deep, and searched and
+     * recorded otherwise. layoutHash identifies the map of the episode, see OpeningBook.layoutHash, and
+     * searchHash the options that narrow the search, see OpeningBook.searchHash
+     */
+    private static final int OPENING_TURNS = 3;
+    private transient OpeningBook openingBook = OpeningBook.empty();
+    private int turnsPlayed = 0;
+    private long layoutHash;
+    private final long searchHash;
+
+    /*
+     * Number of nodes visited by the searches of this agent, quiescence nodes included. Nodes visited while
+     * pondering are moved to ponderNodesSearched when the ponder thread stops, so they are not charged to
+     * the next turn's search. ponderStartTime is when the ponder thread was started, to time it once joined
+     */
+    private long nodesSearched = 0;
+    private long ponderNodesSearched = 0;
+    private long nodesBeforePondering;
+    private long ponderStartTime;
+
+    /*
+     * Per ply counters and timings of the searches of this episode, printed at terminalStep. statistics is
+     * the set being updated: searchStatistics for the turns' own searches, ponderStatistics while the ponder
+     * thread runs
+     */
+    private final transient SearchStatistics searchStatistics = new SearchStatistics();
+    private final transient SearchStatistics ponderStatistics = new SearchStatistics();
+    private transient SearchStatistics statistics = searchStatistics;
+
+    /*
+     * Tree reuse and pondering.
+     * retainedTree is the state reached by the move played last turn, with the subtree searched under it.
+     * When pondering is on, ponderThread keeps searching the archers' expected reply while SEPIA simulates
+     * their turn, and is stopped at the start of the next middleStep.
+     */
+    private final boolean ponder;
+    private transient GameState retainedTree;
+    private transient Thread ponderThread;
+    private volatile boolean stopPondering = false;
+
+    /*
+     * Monte Carlo tree search engine, used instead of alpha-beta when the agent is given "engine=mcts"
+     */
+    private final transient MonteCarloTreeSearch mcts;
+
+    /*
+     * Changes between turns, reported by worldDiff. worldTemplate is the last turn's root, whose map and
+     * distance caches are shared by the next root as long as no tree has been removed. A removed tree
+     * drops the template, the retained tree and the transposition table, which were all built on the old map
+     */
+    private final transient WorldDiff worldDiff = new WorldDiff();
+    private transient GameState worldTemplate;
 
     public MinimaxAlphaBeta(int playernum, String[] args)
     {
         super(playernum);
 
-        if(args.length < 1)
+        worldDiff.addListener(new WorldDiff.Listener() {
+        	@Override
+        	public void resourceRemoved(int resourceID, int x, int y) {
+        		worldTemplate = null;
+        		retainedTree = null;
+        		transpositionTable.clear();
+        	}
+        });
+
+        //The number of plys comes first, and may be left out when the Monte Carlo engine is used
+        boolean plysGiven = args.length > 0 && args[0].matches("\\d+");
+        Map<String, String> options = parseOptions(args, plysGiven ? 1 : 0);
+        if(!plysGiven && !"mcts".equals(options.get("engine")))
         {
             System.err.println("You must specify the number of plys");
             System.exit(1);
         }
 
-        numPlys = Integer.parseInt(args[0]);
+        numPlys = plysGiven ? Integer.parseInt(args[0]) : 0;
+        //Optional cap on the number of actions generated per unit, to bound the branching factor with many units
+        maxActionsPerUnit = Integer.parseInt(options.getOrDefault("maxActions", String.valueOf(Integer.MAX_VALUE)));
+        ponder = options.containsKey("ponder");
+        nullMovePruning = options.containsKey("nullMove");
+        lateMoveReductions = options.containsKey("lmr");
+        searchHash = OpeningBook.searchHash(maxActionsPerUnit, nullMovePruning, lateMoveReductions);
+        if(options.containsKey("tablebase")) {
+        	try {
+        		tablebase = EndgameTablebase.load(Paths.get(options.get("tablebase")));
+        	}
+        	catch(IOException e) {
+        		System.err.println("Could not load the endgame tablebase: " + e.getMessage());
+        	}
+        }
+        if(options.containsKey("sharedTable")) {
+        	try {
+        		sharedTable = SharedTranspositionTable.shared(Integer.parseInt(options.get("sharedTable")),
+        				options.containsKey("sharedTableFile") ? Paths.get(options.get("sharedTableFile")) : null);
+        	}
+        	catch(IOException e) {
+        		System.err.println("Could not open the shared transposition table: " + e.getMessage());
+        	}
+        }
+        if("mcts".equals(options.get("engine"))) {
+        	mcts = new MonteCarloTreeSearch(Integer.parseInt(options.getOrDefault("iterations", "2000")),
+        			Long.parseLong(options.getOrDefault("timeMs", "0")),
+        			Integer.parseInt(options.getOrDefault("workers", "1")));
+        }
+        else {
+        	mcts = null;
+        }
+    }
+
+    public long getNodesSearched() {
+    	return nodesSearched;
+    }
+
+    public long getPonderNodesSearched() {
+    	return ponderNodesSearched;
+    }
+
+    /*
+     * Parses the optional arguments from index first on, after the number of plys when it is given. Each one
+     * is either a switch, e.g. "ponder", or a name=value pair, e.g. "maxActions=3". The Monte Carlo engine is
+     * selected with "engine=mcts" and configured with "iterations=N", "timeMs=N" and "workers=N"; it needs
+     * no number of plys and ignores one.
+     * "tablebase=file" loads an endgame tablebase written by EndgameTablebase.
+     * "nullMove" and "lmr" switch on null-move pruning and late move reductions.
+     */
+    private static Map<String, String> parseOptions(String[] args, int first) {
+    	return Options.parse(args, first);
     }
 
     @Override
     public Map<Integer, Action> initialStep(State.StateView newstate, History.HistoryView statehistory) {
+    	turnsPlayed = 0;
+    	//The local table is keyed by position only, so entries of the last episode's map must not carry over
+    	transpositionTable.clear();
+    	killerMoves.clear();
+    	historyScores.clear();
+    	pvSeed = new ArrayList<>();
+    	worldDiff.reset();
+    	worldTemplate = new GameState(newstate);
+    	layoutHash = OpeningBook.layoutHash(worldTemplate);
+    	checkTablebaseLayout(worldTemplate);
         return middleStep(newstate, statehistory);
     }
 
     @Override
     public Map<Integer, Action> middleStep(State.StateView newstate, History.HistoryView statehistory) {
-        GameStateChild bestChild = alphaBetaSearch(new GameStateChild(newstate),
-                numPlys,
-                Double.NEGATIVE_INFINITY,
-                Double.POSITIVE_INFINITY);
-        return bestChild.action;
+    	stopPondering();
+    	worldDiff.update(newstate);
+    	GameState current = new GameState(newstate, worldTemplate);
+    	if(worldTemplate == null) {
+    		layoutHash = OpeningBook.layoutHash(current);
+    		checkTablebaseLayout(current);
+    	}
+    	worldTemplate = current;
+    	GameStateChild root = new GameStateChild(null, findRetainedState(current));
+    	if(mcts != null) {
+    		GameStateChild bestChild = mcts.search(root.state);
+    		return bestChild == null ? null : bestChild.action;
+    	}
+    	boolean opening = turnsPlayed++ < OPENING_TURNS;
+    	if(opening) {
+    		GameStateChild bookChild = openingBook.bookMove(root.state, layoutHash, searchHash, numPlys);
+    		if(bookChild != null) {
+    			retainedTree = bookChild.state;
+    			pvSeed = new ArrayList<>();
+    			return bookChild.action;
+    		}
+    	}
+    	//An exact answer from the tablebase replaces the search
+    	if(tablebaseMatches) {
+    		GameStateChild winningChild = tablebase.winningChild(root.state);
+    		if(winningChild != null) {
+    			lastScore = TABLEBASE_WIN;
+    			retainedTree = winningChild.state;
+    			pvSeed = new ArrayList<>();
+    			return winningChild.action;
+    		}
+    	}
+
+    	/*
+    	 * Iterative deepening. Each iteration searches an aspiration window around the previous iteration's
+    	 * score and is ordered by the previous iteration's principal variation. If the score falls outside
+    	 * the window, that side of the window is opened and the depth is searched again.
+    	 */
+    	GameStateChild bestChild = null;
+    	long startTime = System.nanoTime();
+    	for(int depth = 1; depth <= numPlys; depth++) {
+    		double alpha = Double.NEGATIVE_INFINITY;
+    		double beta = Double.POSITIVE_INFINITY;
+    		if(depth > 1) {
+    			alpha = lastScore - ASPIRATION_WINDOW;
+    			beta = lastScore + ASPIRATION_WINDOW;
+    		}
+    		while(true) {
+    			GameStateChild child = alphaBetaSearch(root, depth, alpha, beta);
+    			if(lastScore <= alpha && alpha != Double.NEGATIVE_INFINITY) {
+    				alpha = Double.NEGATIVE_INFINITY;
+    			}
+    			else if(lastScore >= beta && beta != Double.POSITIVE_INFINITY) {
+    				beta = Double.POSITIVE_INFINITY;
+    			}
+    			else {
+    				bestChild = child;
+    				break;
+    			}
+    		}
+    		pvSeed = principalVariation();
+    	}
+    	statistics.search(System.nanoTime() - startTime);
+    	//The line starts with our move and the archers' reply, which will have been played by the next search
+    	pvSeed = pvSeed.size() > 2 ? new ArrayList<>(pvSeed.subList(2, pvSeed.size())) : new ArrayList<>();
+    	if(bestChild == null) {
+    		retainedTree = null;
+    		return null;
+    	}
+    	if(opening) {
+    		openingBook.record(root.state, layoutHash, searchHash, bestChild, numPlys, lastScore);
+    	}
+    	retainedTree = bestChild.state;
+    	if(ponder) {
+    		startPondering(bestChild.state);
+    	}
+    	return bestChild.action;
+    }
+
+    /*
+     * Decides whether the tablebase applies to the map of the state, see tablebaseMatches
+     */
+    private void checkTablebaseLayout(GameState state) {
+    	tablebaseMatches = tablebase != null && tablebase.matchesLayout(state);
+    	if(tablebase != null && !tablebaseMatches) {
+    		System.err.println("The endgame tablebase was generated for another map, ignoring it");
+    	}
+    }
+
+    /*
+     * Returns the node of the retained tree that matches the current state, so the search starts from the
+     * children and utilities already computed under it. Falls back to the current state if the archers
+     * played something that was never generated, or if there is no retained tree.
+     */
+    private GameState findRetainedState(GameState current) {
+    	if(retainedTree != null) {
+    		for(GameStateChild reply : retainedTree.getChildren()) {
+    			if(reply.state.isSamePosition(current)) {
+    				return reply.state;
+    			}
+    		}
+    	}
+    	current.setMaxActionsPerUnit(maxActionsPerUnit);
+    	return current;
+    }
+
+    /*
+     * Starts searching the archers' expected reply to the move just played in a background thread.
+     * Everything it computes is kept in the retained tree for the next middleStep
+     */
+    private void startPondering(GameState played) {
+    	List<String> line = principalVariation();
+    	String expectedReply = line.size() > 1 ? line.get(1) : null;
+    	GameStateChild ponderNode = null;
+    	for(GameStateChild reply : played.getChildren()) {
+    		if(ponderNode == null || jointActionKey(reply.action) != null && jointActionKey(reply.action).equals(expectedReply)) {
+    			ponderNode = reply;
+    		}
+    	}
+    	if(ponderNode == null) {
+    		return;
+    	}
+    	GameStateChild node = ponderNode;
+    	//Switched before the thread starts and back after it is joined, so only the ponder thread sees them
+    	statistics = ponderStatistics;
+    	nodesBeforePondering = nodesSearched;
+    	ponderStartTime = System.nanoTime();
+    	ponderThread = new Thread(() -> {
+    		for(int depth = 1; depth <= numPlys && !stopPondering; depth++) {
+    			alphaBetaSearch(node, depth, Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY);
+    		}
+    	});
+    	ponderThread.setDaemon(true);
+    	ponderThread.start();
+    }
+
+    /*
+     * Stops the pondering thread and waits for it, so the search tables are not shared between threads
+     */
+    private void stopPondering() {
+    	if(ponderThread == null) {
+    		return;
+    	}
+    	stopPondering = true;
+    	try {
+    		ponderThread.join();
+    	}
+    	catch(InterruptedException e) {
+    		Thread.currentThread().interrupt();
+    	}
+    	ponderStatistics.search(System.nanoTime() - ponderStartTime);
+    	ponderThread = null;
+    	stopPondering = false;
+    	statistics = searchStatistics;
+    	ponderNodesSearched += nodesSearched - nodesBeforePondering;
+    	nodesSearched = nodesBeforePondering;
     }
 
     @Override
     public void terminalStep(State.StateView newstate, History.HistoryView statehistory) {
+    	stopPondering();
+    	if(mcts != null) {
+    		mcts.shutdown();
+    	}
+    	retainedTree = null;
+    	System.out.println("Search statistics: " + searchStatistics.toJson());
+    	searchStatistics.reset();
+    	if(ponder) {
+    		System.out.println("Ponder statistics: " + ponderStatistics.toJson());
+    		ponderStatistics.reset();
+    	}
+    }
+
+    public SearchStatistics getStatistics() {
+    	return searchStatistics;
+    }
 
+    public SearchStatistics getPonderStatistics() {
+    	return ponderStatistics;
     }
 
+    /*
+     * The player data is the opening book
+     */
     @Override
     public void savePlayerData(OutputStream os) {
-
+    	try {
+    		openingBook.write(os);
+    	}
+    	catch(IOException e) {
+    		System.err.println("Could not save the opening book: " + e.getMessage());
+    	}
     }
 
     @Override
     public void loadPlayerData(InputStream is) {
-
+    	try {
+    		openingBook = OpeningBook.read(is);
+    	}
+    	catch(IOException e) {
+    		System.err.println("Could not load the opening book: " + e.getMessage());
+    	}
     }
 
     /**
@@ -74,37 +479,160 @@ public class MinimaxAlphaBeta extends Agent {
      */
     public GameStateChild alphaBetaSearch(GameStateChild node, int depth, double alpha, double beta)
     {
-    	
+    	pvTable = new String[depth + 1][depth + 1];
+    	pvLength = new int[depth + 1];
 
     	GameStateChild[] bestChild = new GameStateChild[1];
     	//Create a variable to store the best successor in the minimaxValue algorithm
-    	minimaxValue(node, depth, alpha, beta, true, bestChild);
+    	lastScore = minimaxValue(node, depth, alpha, beta, true, 0, bestChild);
     	return bestChild[0];
 
     }
+
+    /*
+     * Returns the principal variation of the last search as a list of joint-action keys, starting at the root
+     */
+    private List<String> principalVariation() {
+    	List<String> line = new ArrayList<>();
+    	for(int i = 0; i < pvLength[0]; i++) {
+    		line.add(pvTable[0][i]);
+    	}
+    	return line;
+    }
     
     /*
-     * A helper method that backup the minimax value from the leave node to the root
+     * A helper method that backup the minimax value from the leave node to the root.
+     *
+     * This is a principal variation search: the first (best ordered) child of each node is searched with the
+     * full window, every later child is first scouted with a null window that only proves whether it can
+     * beat the current bound, and is searched again with the full window only if it does.
+     * The best child is only stored for the root (ply 0).
      */
-    private double minimaxValue(GameStateChild node, int depth, double alpha, double beta, boolean isMax, GameStateChild[] bestChild) {
-    	// return the estimated utility function if the depth reach 0;
-    	if(depth == 0) {
+    private double minimaxValue(GameStateChild node, int depth, double alpha, double beta, boolean isMax, int ply, GameStateChild[] bestChild) {
+    	nodesSearched++;
+    	statistics.node(ply);
+    	pvLength[ply] = 0;
+    	// a pondering search that is being stopped unwinds without expanding anything else
+    	if(stopPondering) {
     		return node.state.getUtility();
     	}
-		List<GameStateChild> childrenList = orderChildrenWithHeuristics(node.state.getChildren(), isMax);
+    	// once the depth reaches 0, only resolve the pending attacks before using the estimated utility function
+    	if(depth == 0) {
+    		return quiescenceValue(node, QUIESCENCE_PLYS, alpha, beta, isMax, ply);
+    	}
+		//Use a previous result of this position if it was searched at least as deep and settles this window
+		PositionKey key = node.state.getCanonicalKey();
+		if(ply > 0 && sharedTable != null) {
+			boolean hit = sharedTable.probe(OpeningBook.key(node.state, layoutHash), sharedProbe) &&
+					settlesWindow(sharedProbe.depth, sharedProbe.bound, sharedProbe.value, depth, alpha, beta);
+			statistics.transpositionProbe(hit);
+			if(hit) {
+				return sharedProbe.value;
+			}
+		}
+		else if(ply > 0) {
+			TranspositionEntry entry = transpositionTable.get(key);
+			boolean hit = entry != null && settlesWindow(entry.depth, entry.bound, entry.value, depth, alpha, beta);
+			statistics.transpositionProbe(hit);
+			if(hit) {
+				return entry.value;
+			}
+		}
+		//Null move: if passing and searching shallower still beats the bound, a real move will too
+		if(nullMovePruning && !nullMoveActive && ply > 0 && depth > NULL_MOVE_REDUCTION && !node.state.isTerminal()) {
+			GameStateChild nullChild = node.state.getNullMoveChild();
+			nullMoveActive = true;
+			double nullValue;
+			if(isMax && beta != Double.POSITIVE_INFINITY) {
+				nullValue = minimaxValue(nullChild, depth - 1 - NULL_MOVE_REDUCTION, beta, beta + NULL_WINDOW, !isMax, ply + 1, bestChild);
+				nullMoveActive = false;
+				if(nullValue > beta) {
+					return nullValue;
+				}
+			}
+			else if(!isMax && alpha != Double.NEGATIVE_INFINITY) {
+				nullValue = minimaxValue(nullChild, depth - 1 - NULL_MOVE_REDUCTION, alpha - NULL_WINDOW, alpha, !isMax, ply + 1, bestChild);
+				nullMoveActive = false;
+				if(nullValue < alpha) {
+					return nullValue;
+				}
+			}
+			nullMoveActive = false;
+		}
+		double value = searchChildren(node, depth, alpha, beta, isMax, ply, bestChild);
+		if(!stopPondering) {
+			int bound = value <= alpha ? UPPER_BOUND : value >= beta ? LOWER_BOUND : EXACT;
+			if(sharedTable != null) {
+				sharedTable.store(OpeningBook.key(node.state, layoutHash), depth, bound, value);
+			}
+			else {
+				if(transpositionTable.size() >= TRANSPOSITION_TABLE_SIZE) {
+					transpositionTable.clear();
+				}
+				transpositionTable.put(key, new TranspositionEntry(depth, value, bound));
+			}
+		}
+		return value;
+    }
+
+    /*
+     * True if a stored result, searched entryDepth deep, gives the value of a search depth deep in this window
+     */
+    private static boolean settlesWindow(int entryDepth, int bound, double value, int depth, double alpha, double beta) {
+    	return entryDepth >= depth &&
+    			(bound == EXACT ||
+    			bound == LOWER_BOUND && value > beta ||
+    			bound == UPPER_BOUND && value < alpha);
+    }
+
+    /*
+     * Searches the children of a node in order, see minimaxValue
+     */
+    private double searchChildren(GameStateChild node, int depth, double alpha, double beta, boolean isMax, int ply, GameStateChild[] bestChild) {
+		long startTime = System.nanoTime();
+		List<GameStateChild> children = node.state.getChildren();
+		statistics.childrenTime(System.nanoTime() - startTime);
+		statistics.expanded(ply, children.size());
+		List<GameStateChild> childrenList = orderChildrenWithHeuristics(children, isMax, depth, ply);
+		boolean first = true;
+		int moveIndex = -1;
     	//If it is a MAX node
     	if(isMax) {
     		double max = Double.NEGATIVE_INFINITY;
 	    	for(GameStateChild successor : childrenList) {
-	    		double successorV = minimaxValue(successor, depth - 1, alpha, beta, !isMax, bestChild);
-	    		// Update max node if this successor is larger, also stores the best child
+	    		moveIndex++;
+	    		double successorV;
+	    		if(first) {
+	    			successorV = minimaxValue(successor, depth - 1, alpha, beta, !isMax, ply + 1, bestChild);
+	    			first = false;
+	    		}
+	    		else {
+	    			//Late moves are scouted at a reduced depth first, and at full depth only if they beat alpha
+	    			successorV = Double.POSITIVE_INFINITY;
+	    			if(isLateMove(depth, moveIndex)) {
+	    				successorV = minimaxValue(successor, depth - 1 - LMR_REDUCTION, alpha, alpha + NULL_WINDOW, !isMax, ply + 1, bestChild);
+	    			}
+	    			if(successorV > alpha) {
+	    				successorV = minimaxValue(successor, depth - 1, alpha, alpha + NULL_WINDOW, !isMax, ply + 1, bestChild);
+	    			}
+	    			//The scout says this successor beats alpha, find its exact value
+	    			if(successorV > alpha && successorV < beta) {
+	    				successorV = minimaxValue(successor, depth - 1, alpha, beta, !isMax, ply + 1, bestChild);
+	    			}
+	    		}
+	    		// Update max node if this successor is larger, also stores the best child at the root
 	    		if(successorV > max) {
 	    			max = successorV;
-	    			bestChild[0] = successor;
+	    			updatePrincipalVariation(successor, ply);
+	    			if(ply == 0) {
+	    				bestChild[0] = successor;
+	    			}
 	    		}
 	    		
 	    		//if the backup value is larger than beta, prune other successors by immediately returning 
 	    		if(max  > beta) {
+	    			recordCutoff(successor, depth);
+	    			statistics.cutoff(ply, isMax, moveIndex);
 	    			break;
 	    		}
 	    		//otherwise update the alpha value with larger of alpha and backup value
@@ -121,41 +649,208 @@ public class MinimaxAlphaBeta extends Agent {
         	double min = Double.MAX_VALUE;
         	//Calculate minimax value of each successor
 	    	for(GameStateChild successor : childrenList) {
-	    		double successorV = minimaxValue(successor, depth - 1, alpha, beta, !isMax, bestChild);
-	    		min = Double.min(successorV, min);
+	    		moveIndex++;
+	    		double successorV;
+	    		if(first) {
+	    			successorV = minimaxValue(successor, depth - 1, alpha, beta, !isMax, ply + 1, bestChild);
+	    			first = false;
+	    		}
+	    		else {
+	    			successorV = Double.NEGATIVE_INFINITY;
+	    			if(isLateMove(depth, moveIndex)) {
+	    				successorV = minimaxValue(successor, depth - 1 - LMR_REDUCTION, beta - NULL_WINDOW, beta, !isMax, ply + 1, bestChild);
+	    			}
+	    			if(successorV < beta) {
+	    				successorV = minimaxValue(successor, depth - 1, beta - NULL_WINDOW, beta, !isMax, ply + 1, bestChild);
+	    			}
+	    			//The scout says this successor is below beta, find its exact value
+	    			if(successorV < beta && successorV > alpha) {
+	    				successorV = minimaxValue(successor, depth - 1, alpha, beta, !isMax, ply + 1, bestChild);
+	    			}
+	    		}
+	    		//Since it is a MIN node, its minimax value is the smallest of its successors
+	    		if(successorV < min) {
+	    			min = successorV;
+	    			updatePrincipalVariation(successor, ply);
+	    		}
 	    		//if the backup value is less than alpha, prune other successors by immediately returning
 	    		if(min  < alpha) {
+	    			recordCutoff(successor, depth);
+	    			statistics.cutoff(ply, isMax, moveIndex);
 	    			break;
 	    		}
 	    		//otherwise update the beta value with smaller of beta and backup value
 	    		else {
 	    			beta = Double.min(beta, min);
 	    		}
-	    		//Since it is a MIN node, its minimax value is the smallest of its successors, it also stores the best successor
 	    	}
 	    	return min;
     	}
     }
 
+    /*
+     * Late move reductions apply to the children ordered after the first LMR_FULL_DEPTH_MOVES,
+     * when enough depth is left that the reduced search is still meaningful
+     */
+    private boolean isLateMove(int depth, int moveIndex) {
+    	return lateMoveReductions && depth >= LMR_MIN_DEPTH && moveIndex >= LMR_FULL_DEPTH_MOVES;
+    }
+
+    /*
+     * Quiescence search below the depth horizon. Only attack children are expanded, until neither side can
+     * attack or the plys run out, so the utility is never taken in the middle of an exchange.
+     * The side to move may always decline to attack, so the utility of the node itself (stand pat) is a
+     * bound on its value: a lower bound at MAX nodes and an upper bound at MIN nodes.
+     * The horizon node itself was counted by minimaxValue, only the attack children are counted here.
+     */
+    private double quiescenceValue(GameStateChild node, int plys, double alpha, double beta, boolean isMax, int ply) {
+    	statistics.leaf(ply);
+    	long startTime = System.nanoTime();
+    	double standPat = node.state.getUtility();
+    	statistics.utilityTime(System.nanoTime() - startTime);
+    	if(plys == 0) {
+    		return standPat;
+    	}
+    	startTime = System.nanoTime();
+    	List<GameStateChild> attackList = node.state.getAttackChildren();
+    	statistics.childrenTime(System.nanoTime() - startTime);
+    	if(isMax) {
+    		double max = standPat;
+    		for(GameStateChild successor : attackList) {
+    			if(max > beta) {
+    				break;
+    			}
+    			alpha = Double.max(alpha, max);
+    			nodesSearched++;
+    			statistics.node(ply + 1);
+    			max = Double.max(max, quiescenceValue(successor, plys - 1, alpha, beta, !isMax, ply + 1));
+    		}
+    		return max;
+    	}
+    	else {
+    		double min = standPat;
+    		for(GameStateChild successor : attackList) {
+    			if(min < alpha) {
+    				break;
+    			}
+    			beta = Double.min(beta, min);
+    			nodesSearched++;
+    			statistics.node(ply + 1);
+    			min = Double.min(min, quiescenceValue(successor, plys - 1, alpha, beta, !isMax, ply + 1));
+    		}
+    		return min;
+    	}
+    }
+
+    /*
+     * Makes the line at this ply the given child followed by the line found under it
+     */
+    private void updatePrincipalVariation(GameStateChild child, int ply) {
+    	pvTable[ply][0] = jointActionKey(child.action);
+    	int childLength = pvLength[ply + 1];
+    	System.arraycopy(pvTable[ply + 1], 0, pvTable[ply], 1, childLength);
+    	pvLength[ply] = childLength + 1;
+    }
+
     /**
      * Given a list of children you will order them according to heuristics you make up.
      * See the assignment description for suggestions on heuristics to use when sorting.
      *
      * Use this function inside of your alphaBetaSearch method.
      *
-     * Include a good comment about what your heuristics are and why you chose them.
+     * Children are ordered by four keys, in priority order:
+     * 0. The principal variation move of this ply from the previous search.
+     * 1. Killer moves: joint actions that caused a cutoff at this depth in an earlier branch
+     *    usually refute the sibling positions as well, so they are tried first.
+     * 2. History score: joint actions that caused cutoffs anywhere in the search, weighted by depth.
+     * 3. The utility of the child state (cached on the state), best first for the side to move.
      *
      * @param children
      * @return The list of children sorted by your heuristic.
      */
     public List<GameStateChild> orderChildrenWithHeuristics(List<GameStateChild> children, boolean isMax)
     {
-    	if(isMax) {
-        	children.sort((c1, c2) -> ((int)(c1.state.orderingHeuristics() - c2.state.orderingHeuristics())));
+    	return orderChildrenWithHeuristics(children, isMax, -1, -1);
+    }
+
+    /*
+     * Orders the children at a node with the given remaining depth and ply, using the killer moves of that depth
+     * and the principal variation move of that ply
+     */
+    private List<GameStateChild> orderChildrenWithHeuristics(List<GameStateChild> children, boolean isMax, int depth, int ply)
+    {
+    	String pvMove = ply >= 0 && ply < pvSeed.size() ? pvSeed.get(ply) : null;
+    	List<String> killers = killerMoves.getOrDefault(depth, new ArrayList<>());
+    	Map<GameStateChild, Integer> killerRank = new HashMap<>();
+    	Map<GameStateChild, Integer> history = new HashMap<>();
+    	//Look up the table scores once per child, not once per comparison
+    	for(GameStateChild child : children) {
+    		String key = jointActionKey(child.action);
+    		int rank = key == null ? -1 : killers.indexOf(key);
+    		killerRank.put(child, rank == -1 ? KILLERS_PER_DEPTH : rank);
+    		if(key != null && key.equals(pvMove)) {
+    			killerRank.put(child, -1);
+    		}
+    		history.put(child, key == null ? 0 : historyScores.getOrDefault(key, 0));
     	}
-    	else {
-        	children.sort((c1, c2) -> ((int)(c2.state.orderingHeuristics() - c1.state.orderingHeuristics())));
+    	//Score all the siblings in one batch rather than one by one as the sort first asks for them
+    	long startTime = System.nanoTime();
+    	LeafBatch.evaluate(children);
+    	statistics.utilityTime(System.nanoTime() - startTime);
+    	Comparator<GameStateChild> byUtility = Comparator.comparingDouble(c -> c.state.orderingHeuristics());
+    	if(isMax) {
+    		byUtility = byUtility.reversed();
     	}
+    	Comparator<GameStateChild> byHistory = Comparator.comparing(c -> history.get(c));
+    	startTime = System.nanoTime();
+    	children.sort(Comparator.<GameStateChild>comparingInt(c -> killerRank.get(c))
+    			.thenComparing(byHistory.reversed())
+    			.thenComparing(byUtility));
+    	statistics.sortTime(System.nanoTime() - startTime);
     	return children;
     }
+
+    /*
+     * Updates the killer and history tables with a child that caused a cutoff at the given depth. Nothing is
+     * recorded once pondering is stopped: the values of a stopped search are raw utilities, not real cutoffs
+     */
+    private void recordCutoff(GameStateChild child, int depth) {
+    	if(stopPondering) {
+    		return;
+    	}
+    	String key = jointActionKey(child.action);
+    	if(key == null) {
+    		return;
+    	}
+    	historyScores.merge(key, depth * depth, Integer::sum);
+    	List<String> killers = killerMoves.computeIfAbsent(depth, d -> new ArrayList<>());
+    	killers.remove(key);
+    	killers.add(0, key);
+    	if(killers.size() > KILLERS_PER_DEPTH) {
+    		killers.remove(KILLERS_PER_DEPTH);
+    	}
+    }
+
+    /*
+     * Builds a key for a joint action that does not depend on the map iteration order,
+     * e.g. "1:PRIMITIVEMOVE:NORTH;2:PRIMITIVEATTACK:7"
+     */
+    static String jointActionKey(Map<Integer, Action> action) {
+    	if(action == null || action.isEmpty()) {
+    		return null;
+    	}
+    	StringBuilder key = new StringBuilder();
+    	for(Map.Entry<Integer, Action> entry : new TreeMap<>(action).entrySet()) {
+    		Action unitAction = entry.getValue();
+    		key.append(entry.getKey()).append(':').append(unitAction.getType()).append(':');
+    		if(unitAction instanceof DirectedAction) {
+    			key.append(((DirectedAction) unitAction).getDirection());
+    		}
+    		else if(unitAction instanceof TargetedAction) {
+    			key.append(((TargetedAction) unitAction).getTargetId());
+    		}
+    		key.append(';');
+    	}
+    	return key.toString();
+    }
 }
@@ -0,0 +1,264 @@
+package edu.cwru.sepia.agent.minimax;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Monte Carlo tree search (UCT) over the same GameState and GameStateChild model as MinimaxAlphaBeta.
+ *
+ * Every iteration walks down the tree choosing children by the UCB1 bound, expands the node it reaches
+ * with GameState.getChildren(), plays a short random (partly greedy) playout from it with
+ * GameState.getRandomChild() and backs the reward up to the root. Rewards are from the footmen's point of
+ * view in [0, 1]: 1 and 0 for won and lost games, otherwise a logistic of the utility gained since the root.
+ *
+ * With more than one worker, each worker grows its own tree from its own copy of the root (root
+ * parallelization), and the visit counts of the root children are summed at decision time. The worker
+ * threads are created by the first search and kept until shutdown, which the agent calls at terminalStep.
+ */
+public class MonteCarloTreeSearch {
+
+	private static final double EXPLORATION = Math.sqrt(2);
+	private static final int PLAYOUT_PLYS = 6;
+	private static final double GREEDY_PLAYOUT_RATE = 0.5;
+	private static final double REWARD_SCALE = 1000;
+	private static final int INITIAL_CAPACITY = 1024;
+
+	private final int iterations;
+	private final long timeLimitNanos;
+	private final int workers;
+	private ExecutorService pool;
+
+	/**
+	 * @param iterations Maximum number of iterations per worker
+	 * @param timeLimitMillis Maximum time per decision, 0 for no time limit
+	 * @param workers Number of root-parallel trees, each searched in its own thread
+	 */
+	public MonteCarloTreeSearch(int iterations, long timeLimitMillis, int workers) {
+		this.iterations = iterations;
+		this.timeLimitNanos = timeLimitMillis * 1000000L;
+		this.workers = Math.max(1, workers);
+	}
+
+	/**
+	 * Searches from the given state, which must be the footmen's turn
+	 *
+	 * @param root The state to decide from
+	 * @return The most visited child of the root, or null if the root has no children
+	 */
+	public GameStateChild search(GameState root) {
+		long deadline = timeLimitNanos > 0 ? System.nanoTime() + timeLimitNanos : Long.MAX_VALUE;
+		if(workers == 1) {
+			Tree tree = new Tree(root, new Random());
+			tree.run(deadline);
+			return tree.mostVisitedChild();
+		}
+
+		if(pool == null) {
+			pool = Executors.newFixedThreadPool(workers, runnable -> {
+				Thread thread = new Thread(runnable);
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+		List<Tree> trees = new ArrayList<>();
+		try {
+			List<Future<?>> futures = new ArrayList<>();
+			for(int i = 0; i < workers; i++) {
+				Tree tree = new Tree(new GameState(root), new Random());
+				trees.add(tree);
+				futures.add(pool.submit(() -> tree.run(deadline)));
+			}
+			for(Future<?> future : futures) {
+				future.get();
+			}
+		}
+		catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		catch(ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		}
+		return mergeRootVisits(trees);
+	}
+
+	/**
+	 * Stops the worker threads. A later search starts new ones
+	 */
+	public void shutdown() {
+		if(pool != null) {
+			pool.shutdown();
+			pool = null;
+		}
+	}
+
+	/*
+	 * Sums the visits of every root child over all the trees, matching children by joint action
+	 */
+	private GameStateChild mergeRootVisits(List<Tree> trees) {
+		Map<String, Integer> visits = new HashMap<>();
+		Map<String, GameStateChild> children = new HashMap<>();
+		for(Tree tree : trees) {
+			for(int i = 0; i < tree.childCount[0]; i++) {
+				int child = tree.firstChild[0] + i;
+				String key = MinimaxAlphaBeta.jointActionKey(tree.nodes[child].action);
+				visits.merge(key, tree.visits[child], Integer::sum);
+				children.putIfAbsent(key, tree.nodes[child]);
+			}
+		}
+		GameStateChild best = null;
+		int bestVisits = -1;
+		for(Map.Entry<String, Integer> entry : visits.entrySet()) {
+			if(entry.getValue() > bestVisits) {
+				bestVisits = entry.getValue();
+				best = children.get(entry.getKey());
+			}
+		}
+		return best;
+	}
+
+	/*
+	 * One search tree. Node statistics are kept in parallel primitive arrays indexed by node number, and the
+	 * children of a node occupy the consecutive slots firstChild .. firstChild + childCount - 1.
+	 * childCount is -1 until the node has been expanded.
+	 */
+	private class Tree {
+		private int size;
+		private int[] parent;
+		private int[] firstChild;
+		private int[] childCount;
+		private int[] visits;
+		private double[] reward;
+		private GameStateChild[] nodes;
+
+		private final Random random;
+		private final double rootUtility;
+
+		public Tree(GameState root, Random random) {
+			this.random = random;
+			this.rootUtility = root.getUtility();
+			parent = new int[INITIAL_CAPACITY];
+			firstChild = new int[INITIAL_CAPACITY];
+			childCount = new int[INITIAL_CAPACITY];
+			visits = new int[INITIAL_CAPACITY];
+			reward = new double[INITIAL_CAPACITY];
+			nodes = new GameStateChild[INITIAL_CAPACITY];
+			addNode(new GameStateChild(null, root), -1);
+		}
+
+		/*
+		 * Runs iterations until the iteration count or the deadline is reached
+		 */
+		public void run(long deadline) {
+			for(int i = 0; i < iterations && System.nanoTime() < deadline; i++) {
+				int node = 0;
+				//Selection
+				while(childCount[node] > 0) {
+					node = select(node);
+				}
+				//Expansion
+				if(childCount[node] == -1) {
+					expand(node);
+					if(childCount[node] > 0) {
+						node = firstChild[node];
+					}
+				}
+				//Simulation and backpropagation
+				double value = playout(nodes[node].state);
+				while(node != -1) {
+					visits[node]++;
+					reward[node] += value;
+					node = parent[node];
+				}
+			}
+		}
+
+		/*
+		 * Picks the child with the highest UCB1 bound, for the side to move at the node.
+		 * Unvisited children are tried first
+		 */
+		private int select(int node) {
+			boolean isMax = nodes[node].state.isFootmanTurn();
+			double logVisits = Math.log(visits[node]);
+			int best = -1;
+			double bestBound = Double.NEGATIVE_INFINITY;
+			for(int child = firstChild[node]; child < firstChild[node] + childCount[node]; child++) {
+				if(visits[child] == 0) {
+					return child;
+				}
+				double mean = reward[child] / visits[child];
+				double bound = (isMax ? mean : 1 - mean) + EXPLORATION * Math.sqrt(logVisits / visits[child]);
+				if(bound > bestBound) {
+					bestBound = bound;
+					best = child;
+				}
+			}
+			return best;
+		}
+
+		private void expand(int node) {
+			GameState state = nodes[node].state;
+			List<GameStateChild> children = state.isTerminal() ? new ArrayList<>() : state.getChildren();
+			firstChild[node] = size;
+			childCount[node] = children.size();
+			for(GameStateChild child : children) {
+				addNode(child, node);
+			}
+		}
+
+		/*
+		 * Plays random joint actions for a few plys and scores the final state
+		 */
+		private double playout(GameState state) {
+			for(int ply = 0; ply < PLAYOUT_PLYS && !state.isTerminal(); ply++) {
+				GameStateChild child = state.getRandomChild(random, GREEDY_PLAYOUT_RATE);
+				if(child == null) {
+					break;
+				}
+				state = child.state;
+			}
+			if(state.isTerminal()) {
+				return state.isFootmenWin() ? 1 : 0;
+			}
+			return 1 / (1 + Math.exp(-(state.getUtility() - rootUtility) / REWARD_SCALE));
+		}
+
+		private void addNode(GameStateChild child, int parentNode) {
+			if(size == nodes.length) {
+				int capacity = size * 2;
+				parent = Arrays.copyOf(parent, capacity);
+				firstChild = Arrays.copyOf(firstChild, capacity);
+				childCount = Arrays.copyOf(childCount, capacity);
+				visits = Arrays.copyOf(visits, capacity);
+				reward = Arrays.copyOf(reward, capacity);
+				nodes = Arrays.copyOf(nodes, capacity);
+			}
+			parent[size] = parentNode;
+			firstChild[size] = -1;
+			childCount[size] = -1;
+			visits[size] = 0;
+			reward[size] = 0;
+			nodes[size] = child;
+			size++;
+		}
+
+		public GameStateChild mostVisitedChild() {
+			GameStateChild best = null;
+			int bestVisits = -1;
+			for(int child = firstChild[0]; child < firstChild[0] + childCount[0]; child++) {
+				if(visits[child] > bestVisits) {
+					bestVisits = visits[child];
+					best = nodes[child];
+				}
+			}
+			return best;
+		}
+	}
+}
@@ -0,0 +1,232 @@
+package edu.cwru.sepia.agent.minimax;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Search results of early game positions, kept across episodes through the agent's player data.
+ *
+ * An entry is keyed by the hash of the canonical position mixed with a hash of the map (size and trees) and
+ * a hash of the options that narrow the search (maxActions, nullMove, lmr), so a full width search never
+ * plays the result of a narrowed one as if it were as deep. An entry holds the depth it was searched to, the score and the hash of the canonical position reached by the best
+ * joint action. Storing the position reached rather than the action keeps entries valid for positions that
+ * only differ by a permutation of interchangeable units.
+ *
+ * File layout: the magic number, the number of entries, then ENTRY_BYTES per entry sorted by key: key (long),
+ * best child key (long), depth (int), score (double). Entries loaded from a file are looked up by binary
+ * search in the mapped file, entries recorded during this run are kept in a map until the book is written.
+ */
+public class OpeningBook {
+
+	private static final int MAGIC = 0x4F424B31;
+	private static final int HEADER_BYTES = 8;
+	private static final int ENTRY_BYTES = 28;
+
+	/*
+	 * Sorted entries loaded from a book file, empty if there was none
+	 */
+	private final ByteBuffer entries;
+	private final int entryCount;
+
+	/*
+	 * Entries recorded since the book was loaded, by key
+	 */
+	private final Map<Long, Entry> recorded = new HashMap<>();
+
+	private static class Entry {
+		private final long key;
+		private final long childKey;
+		private final int depth;
+		private final double score;
+
+		public Entry(long key, long childKey, int depth, double score) {
+			this.key = key;
+			this.childKey = childKey;
+			this.depth = depth;
+			this.score = score;
+		}
+	}
+
+	private OpeningBook(ByteBuffer entries, int entryCount) {
+		this.entries = entries;
+		this.entryCount = entryCount;
+	}
+
+	public static OpeningBook empty() {
+		return new OpeningBook(ByteBuffer.allocate(0), 0);
+	}
+
+	/**
+	 * Reads a book written by write and memory-maps it.
+	 *
+	 * SEPIA saves the player data to the file it loaded it from, and truncating a mapped file makes later
+	 * accesses to the mapping fail. So the stream is first copied to a temporary file, which is mapped and
+	 * then deleted (the mapping stays valid until it is collected).
+	 */
+	public static OpeningBook read(InputStream in) throws IOException {
+		Path copy = Files.createTempFile("opening-book", ".bin");
+		ByteBuffer buffer;
+		try {
+			Files.copy(in, copy, StandardCopyOption.REPLACE_EXISTING);
+			try(FileChannel channel = FileChannel.open(copy, StandardOpenOption.READ)) {
+				buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			}
+		}
+		finally {
+			try {
+				Files.delete(copy);
+			}
+			catch(IOException e) {
+				//Files that are still mapped cannot be deleted on some systems
+				copy.toFile().deleteOnExit();
+			}
+		}
+		if(buffer.remaining() == 0) {
+			return empty();
+		}
+		if(buffer.remaining() < HEADER_BYTES || buffer.getInt(0) != MAGIC) {
+			throw new IOException("Not an opening book");
+		}
+		int entryCount = buffer.getInt(4);
+		if(buffer.remaining() < HEADER_BYTES + (long) entryCount * ENTRY_BYTES) {
+			throw new IOException("Truncated opening book");
+		}
+		buffer.position(HEADER_BYTES);
+		return new OpeningBook(buffer.slice(), entryCount);
+	}
+
+	/**
+	 * Hash of the map size and tree layout of a state, mixed into every key so that books of different maps
+	 * can share one file
+	 */
+	public static long layoutHash(GameState state) {
+		long hash = mix(((long) state.getXExtent() << 32) | state.getYExtent());
+		for(int y = 0; y < state.getYExtent(); y++) {
+			for(int x = 0; x < state.getXExtent(); x++) {
+				if(state.isTree(x, y)) {
+					hash = mix(hash ^ (((long) x << 32) | y));
+				}
+			}
+		}
+		return hash;
+	}
+
+	private static long mix(long z) {
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return z ^ (z >>> 31);
+	}
+
+	/**
+	 * Hash of the options that narrow the search, mixed into every key so that an entry is only played by an
+	 * agent searching the same way. It is 0 for a full width search, whose keys are then the same as before
+	 * the options were part of them
+	 */
+	public static long searchHash(int maxActionsPerUnit, boolean nullMovePruning, boolean lateMoveReductions) {
+		if(maxActionsPerUnit == Integer.MAX_VALUE && !nullMovePruning && !lateMoveReductions) {
+			return 0;
+		}
+		return mix(((long) maxActionsPerUnit << 2) | (nullMovePruning ? 2 : 0) | (lateMoveReductions ? 1 : 0));
+	}
+
+	static long key(GameState state, long layoutHash) {
+		return mix(state.getCanonicalKey().hash64() ^ layoutHash);
+	}
+
+	/**
+	 * Returns the child of the state that the book plays, or null if the state is not in the book for this
+	 * searchHash or was searched shallower than minDepth
+	 */
+	public GameStateChild bookMove(GameState state, long layoutHash, long searchHash, int minDepth) {
+		Entry entry = find(key(state, layoutHash ^ searchHash));
+		if(entry == null || entry.depth < minDepth) {
+			return null;
+		}
+		for(GameStateChild child : state.getChildren()) {
+			if(child.state.getCanonicalKey().hash64() == entry.childKey) {
+				return child;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Records the result of a search, unless the book already has the state at least as deep
+	 */
+	public void record(GameState state, long layoutHash, long searchHash, GameStateChild bestChild, int depth, double score) {
+		long key = key(state, layoutHash ^ searchHash);
+		Entry entry = find(key);
+		if(entry == null || entry.depth < depth) {
+			recorded.put(key, new Entry(key, bestChild.state.getCanonicalKey().hash64(), depth, score));
+		}
+	}
+
+	private Entry find(long key) {
+		Entry entry = recorded.get(key);
+		if(entry != null) {
+			return entry;
+		}
+		int low = 0;
+		int high = entryCount - 1;
+		while(low <= high) {
+			int middle = (low + high) >>> 1;
+			long middleKey = entries.getLong(middle * ENTRY_BYTES);
+			if(middleKey < key) {
+				low = middle + 1;
+			}
+			else if(middleKey > key) {
+				high = middle - 1;
+			}
+			else {
+				return readEntry(middle);
+			}
+		}
+		return null;
+	}
+
+	private Entry readEntry(int index) {
+		int offset = index * ENTRY_BYTES;
+		return new Entry(entries.getLong(offset), entries.getLong(offset + 8), entries.getInt(offset + 16),
+				entries.getDouble(offset + 20));
+	}
+
+	/**
+	 * Writes the loaded entries merged with the recorded ones, sorted by key
+	 */
+	public void write(OutputStream out) throws IOException {
+		List<Entry> merged = new ArrayList<>();
+		for(int i = 0; i < entryCount; i++) {
+			Entry entry = readEntry(i);
+			if(!recorded.containsKey(entry.key)) {
+				merged.add(entry);
+			}
+		}
+		merged.addAll(recorded.values());
+		merged.sort((e1, e2) -> Long.compare(e1.key, e2.key));
+
+		DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out));
+		data.writeInt(MAGIC);
+		data.writeInt(merged.size());
+		for(Entry entry : merged) {
+			data.writeLong(entry.key);
+			data.writeLong(entry.childKey);
+			data.writeInt(entry.depth);
+			data.writeDouble(entry.score);
+		}
+		data.flush();
+	}
+
+}
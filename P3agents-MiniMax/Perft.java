@@ -0,0 +1,99 @@
+package edu.cwru.sepia.agent.minimax;
+
+import edu.cwru.sepia.agent.grid.Options;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Counts the positions reached by GameState.getChildren to a fixed depth, to check that a new move generator
+ * produces exactly the same children as the current one.
+ *
+ * For every position of the corpus it prints the number of leaves at the given depth and a digest of the
+ * leaves: the sum of the 64 bit hashes of their canonical keys, which does not depend on the order the
+ * children are generated in. Two generators that agree on both for every position generate the same tree.
+ * The children of the root are counted in parallel.
+ *
+ * Usage: Perft name=value ...
+ *   depth=N           plys to expand (default 3)
+ *   positions=a,b     corpus positions, see PositionCorpus (default: all of them)
+ *   maxActions=K      cap on the actions generated per unit (default: none)
+ *   threads=N         pool size (default: available processors)
+ *   divide            also print the counts under each child of the root
+ */
+public class Perft {
+
+	/**
+	 * Leaf count and digest of a subtree
+	 */
+	public static class Result {
+		public long leaves;
+		public long digest;
+
+		private void add(Result other) {
+			leaves += other.leaves;
+			digest += other.digest;
+		}
+	}
+
+	public static void main(String[] args) throws InterruptedException, ExecutionException {
+		Map<String, String> options = Options.parse(args, 0);
+		int depth = Integer.parseInt(options.getOrDefault("depth", "3"));
+		int maxActions = Integer.parseInt(options.getOrDefault("maxActions", String.valueOf(Integer.MAX_VALUE)));
+		int threads = Integer.parseInt(options.getOrDefault("threads", String.valueOf(Runtime.getRuntime().availableProcessors())));
+		boolean divide = options.containsKey("divide");
+		List<String> positions = options.containsKey("positions")
+				? List.of(options.get("positions").split(","))
+				: PositionCorpus.names();
+
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		try {
+			for(String name : positions) {
+				GameState root = PositionCorpus.state(name);
+				root.setMaxActionsPerUnit(maxActions);
+				long startTime = System.nanoTime();
+				List<GameStateChild> children = depth == 0 ? new ArrayList<>() : root.getChildren();
+				List<Future<Result>> futures = new ArrayList<>();
+				for(GameStateChild child : children) {
+					futures.add(pool.submit(() -> perft(child.state, depth - 1)));
+				}
+				Result total = depth == 0 ? perft(root, 0) : new Result();
+				for(int i = 0; i < futures.size(); i++) {
+					Result result = futures.get(i).get();
+					if(divide) {
+						System.out.println("  " + MinimaxAlphaBeta.jointActionKey(children.get(i).action) + "\t" + result.leaves);
+					}
+					total.add(result);
+				}
+				double seconds = (System.nanoTime() - startTime) / 1e9;
+				System.out.println(name + "\tdepth " + depth + "\tleaves " + total.leaves +
+						"\tdigest " + Long.toHexString(total.digest) + "\t" + seconds + "s");
+			}
+		}
+		finally {
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * Counts the leaves under a state. Children are generated on a copy of each state, so the expanded tree
+	 * is not cached on the states and can be collected as the count goes
+	 */
+	public static Result perft(GameState state, int depth) {
+		Result result = new Result();
+		if(depth == 0) {
+			result.leaves = 1;
+			result.digest = state.getCanonicalKey().hash64();
+			return result;
+		}
+		for(GameStateChild child : new GameState(state).getChildren()) {
+			result.add(perft(child.state, depth - 1));
+		}
+		return result;
+	}
+}
@@ -0,0 +1,116 @@
+package edu.cwru.sepia.agent.minimax;
+
+import edu.cwru.sepia.environment.model.state.State;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+
+/**
+ * A fixed set of named positions used by the benchmarks and by Perft, built the same way on every run.
+ *
+ * Each position is a generated map description: a map size, a number of footmen and archers and a tree
+ * density. Trees and units are placed at random from a seed derived from the name, footmen in the left
+ * quarter of the map and archers in the right quarter, and the map is turned into a SEPIA state view
+ * through HeadlessSimulator and BatchEpisodeRunner.
+ */
+public final class PositionCorpus {
+
+	private static final int[][] SIZES = {{10, 10}, {20, 15}, {32, 32}};
+	private static final int[] UNITS = {1, 2, 4};
+	private static final int[] TREE_PERCENT = {0, 10, 25};
+
+	private PositionCorpus() {
+	}
+
+	/**
+	 * Names of all the positions, e.g. "20x15-2v2-t10"
+	 */
+	public static List<String> names() {
+		List<String> names = new ArrayList<>();
+		for(int[] size : SIZES) {
+			for(int units : UNITS) {
+				for(int trees : TREE_PERCENT) {
+					names.add(size[0] + "x" + size[1] + "-" + units + "v" + units + "-t" + trees);
+				}
+			}
+		}
+		return names;
+	}
+
+	/**
+	 * All the positions by name, in the order of names()
+	 */
+	public static Map<String, State.StateView> views() {
+		Map<String, State.StateView> views = new LinkedHashMap<>();
+		for(String name : names()) {
+			views.put(name, view(name));
+		}
+		return views;
+	}
+
+	/**
+	 * The footmen's view of the named position
+	 */
+	public static State.StateView view(String name) {
+		return BatchEpisodeRunner.toStateView(HeadlessSimulator.parse(mapDescription(name)));
+	}
+
+	/**
+	 * The named position as the root of a search
+	 */
+	public static GameState state(String name) {
+		return new GameState(view(name));
+	}
+
+	/**
+	 * Generates the map description of a name of the form WIDTHxHEIGHT-FvA-tPERCENT
+	 */
+	public static List<String> mapDescription(String name) {
+		String[] parts = name.split("-");
+		String[] size = parts[0].split("x");
+		String[] units = parts[1].split("v");
+		int width = Integer.parseInt(size[0]);
+		int height = Integer.parseInt(size[1]);
+		int footmen = Integer.parseInt(units[0]);
+		int archers = Integer.parseInt(units[1]);
+		int treePercent = Integer.parseInt(parts[2].substring(1));
+		if(footmen > width / 4 * height || archers > width / 4 * height) {
+			throw new IllegalArgumentException("Too many units for the map: " + name);
+		}
+
+		SplittableRandom random = new SplittableRandom(name.hashCode());
+		char[][] grid = new char[height][width];
+		for(int y = 0; y < height; y++) {
+			for(int x = 0; x < width; x++) {
+				grid[y][x] = random.nextInt(100) < treePercent ? 'T' : '.';
+			}
+		}
+		place(grid, 'F', footmen, 0, width / 4, random);
+		place(grid, 'A', archers, width - width / 4, width, random);
+
+		List<String> lines = new ArrayList<>();
+		lines.add("# Generated corpus position " + name);
+		for(char[] row : grid) {
+			lines.add(new String(row));
+		}
+		return lines;
+	}
+
+	/*
+	 * Places units on distinct cells of the columns [fromX, toX), clearing any tree under them
+	 */
+	private static void place(char[][] grid, char unit, int count, int fromX, int toX, SplittableRandom random) {
+		int placed = 0;
+		while(placed < count) {
+			int x = fromX + random.nextInt(toX - fromX);
+			int y = random.nextInt(grid.length);
+			if(grid[y][x] != 'F' && grid[y][x] != 'A') {
+				grid[y][x] = unit;
+				placed++;
+			}
+		}
+	}
+}
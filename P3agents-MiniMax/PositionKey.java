@@ -0,0 +1,81 @@
+package edu.cwru.sepia.agent.minimax;
+
+import java.util.Arrays;
+
+/**
+ * Canonical identity of a GameState, used for hashing and transposition lookups.
+ *
+ * Footmen with the same HP are interchangeable, and so are archers, so the key does not record unit IDs:
+ * each unit is packed into a long (x, y and HP), and the footmen and the archers are each sorted. Two
+ * states that differ only by which ID sits on which cell have equal keys.
+ */
+public final class PositionKey {
+
+	private final boolean footmanTurn;
+	private final long[] footmen;
+	private final long[] archers;
+	private final long hash64;
+	private final int hash;
+
+	public PositionKey(boolean footmanTurn, long[] footmen, long[] archers) {
+		this.footmanTurn = footmanTurn;
+		this.footmen = footmen;
+		this.archers = archers;
+		Arrays.sort(this.footmen);
+		Arrays.sort(this.archers);
+		this.hash64 = computeHash64();
+		this.hash = (int) (hash64 ^ (hash64 >>> 32));
+	}
+
+	/**
+	 * Packs one unit as x (16 bits), y (16 bits) and HP (32 bits)
+	 */
+	public static long packUnit(int x, int y, int hp) {
+		return ((long) (x & 0xFFFF) << 48) | ((long) (y & 0xFFFF) << 32) | (hp & 0xFFFFFFFFL);
+	}
+
+	/**
+	 * A 64 bit hash of the key, mixed with the splitmix64 finalizer so that nearby positions spread out
+	 */
+	public long hash64() {
+		return hash64;
+	}
+
+	private long computeHash64() {
+		long h = footmanTurn ? 0x9E3779B97F4A7C15L : 0;
+		for(long unit : footmen) {
+			h = mix(h ^ unit);
+		}
+		h = mix(h ^ 0xD1B54A32D192ED03L);
+		for(long unit : archers) {
+			h = mix(h ^ unit);
+		}
+		return h;
+	}
+
+	private static long mix(long z) {
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return z ^ (z >>> 31);
+	}
+
+	@Override
+	public int hashCode() {
+		return hash;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj)
+			return true;
+		if (obj == null)
+			return false;
+		if (getClass() != obj.getClass())
+			return false;
+		PositionKey other = (PositionKey) obj;
+		return footmanTurn == other.footmanTurn &&
+				hash == other.hash &&
+				Arrays.equals(footmen, other.footmen) &&
+				Arrays.equals(archers, other.archers);
+	}
+}
@@ -0,0 +1,183 @@
+package edu.cwru.sepia.agent.minimax;
+
+import java.util.Arrays;
+
+/**
+ * Counters of the alpha-beta searches of one episode, broken down by ply (distance from the root, quiescence
+ * plys included). MinimaxAlphaBeta updates them while searching and prints them at terminalStep.
+ *
+ * Not thread safe: the pondering search and the main search never run at the same time.
+ */
+public class SearchStatistics {
+
+	private int searches;
+	private long searchNanos;
+	private int maxPly = -1;
+
+	/*
+	 * Per ply counters
+	 */
+	private long[] nodes = new long[0];
+	private long[] leaves = new long[0];
+	private long[] expanded = new long[0];
+	private long[] children = new long[0];
+	private long[] betaCutoffs = new long[0];
+	private long[] alphaCutoffs = new long[0];
+	private long[] firstMoveCutoffs = new long[0];
+	private long[] cutoffIndexSum = new long[0];
+
+	/*
+	 * Time spent generating children, evaluating states and sorting children
+	 */
+	private long childrenNanos;
+	private long utilityNanos;
+	private long sortNanos;
+
+	private long transpositionProbes;
+	private long transpositionHits;
+
+	public void search(long nanos) {
+		searches++;
+		searchNanos += nanos;
+	}
+
+	public void node(int ply) {
+		grow(ply);
+		nodes[ply]++;
+	}
+
+	/*
+	 * A state whose utility was used as the value of a quiescence node
+	 */
+	public void leaf(int ply) {
+		grow(ply);
+		leaves[ply]++;
+	}
+
+	public void expanded(int ply, int childCount) {
+		grow(ply);
+		expanded[ply]++;
+		children[ply] += childCount;
+	}
+
+	/*
+	 * A cutoff at a MAX node (beta) or a MIN node (alpha), caused by the child at moveIndex in search order
+	 */
+	public void cutoff(int ply, boolean isMax, int moveIndex) {
+		grow(ply);
+		if(isMax) {
+			betaCutoffs[ply]++;
+		}
+		else {
+			alphaCutoffs[ply]++;
+		}
+		if(moveIndex == 0) {
+			firstMoveCutoffs[ply]++;
+		}
+		cutoffIndexSum[ply] += moveIndex;
+	}
+
+	public void transpositionProbe(boolean hit) {
+		transpositionProbes++;
+		if(hit) {
+			transpositionHits++;
+		}
+	}
+
+	public void childrenTime(long nanos) {
+		childrenNanos += nanos;
+	}
+
+	public void utilityTime(long nanos) {
+		utilityNanos += nanos;
+	}
+
+	public void sortTime(long nanos) {
+		sortNanos += nanos;
+	}
+
+	public long getTotalNodes() {
+		long total = 0;
+		for(long count : nodes) {
+			total += count;
+		}
+		return total;
+	}
+
+	public void reset() {
+		searches = 0;
+		searchNanos = 0;
+		maxPly = -1;
+		nodes = new long[0];
+		leaves = new long[0];
+		expanded = new long[0];
+		children = new long[0];
+		betaCutoffs = new long[0];
+		alphaCutoffs = new long[0];
+		firstMoveCutoffs = new long[0];
+		cutoffIndexSum = new long[0];
+		childrenNanos = 0;
+		utilityNanos = 0;
+		sortNanos = 0;
+		transpositionProbes = 0;
+		transpositionHits = 0;
+	}
+
+	private void grow(int ply) {
+		if(ply >= nodes.length) {
+			int length = Math.max(ply + 1, nodes.length * 2);
+			nodes = Arrays.copyOf(nodes, length);
+			leaves = Arrays.copyOf(leaves, length);
+			expanded = Arrays.copyOf(expanded, length);
+			children = Arrays.copyOf(children, length);
+			betaCutoffs = Arrays.copyOf(betaCutoffs, length);
+			alphaCutoffs = Arrays.copyOf(alphaCutoffs, length);
+			firstMoveCutoffs = Arrays.copyOf(firstMoveCutoffs, length);
+			cutoffIndexSum = Arrays.copyOf(cutoffIndexSum, length);
+		}
+		maxPly = Math.max(maxPly, ply);
+	}
+
+	/**
+	 * The totals of the episode as one JSON object. Per ply, "branching" is the average number of children of
+	 * the expanded nodes, "effectiveBranching" the number of nodes at the next ply per node at this ply, and
+	 * "meanCutoffIndex" the average position in search order of the children that caused a cutoff.
+	 */
+	public String toJson() {
+		long totalNodes = getTotalNodes();
+		StringBuilder json = new StringBuilder("{");
+		json.append("\"searches\":").append(searches);
+		json.append(",\"nodes\":").append(totalNodes);
+		json.append(",\"searchSeconds\":").append(searchNanos / 1e9);
+		json.append(",\"nodesPerSecond\":").append(searchNanos == 0 ? 0 : (long) (totalNodes / (searchNanos / 1e9)));
+		json.append(",\"childrenSeconds\":").append(childrenNanos / 1e9);
+		json.append(",\"utilitySeconds\":").append(utilityNanos / 1e9);
+		json.append(",\"sortSeconds\":").append(sortNanos / 1e9);
+		json.append(",\"transpositionProbes\":").append(transpositionProbes);
+		json.append(",\"transpositionHitRate\":").append(ratio(transpositionHits, transpositionProbes));
+		json.append(",\"plys\":[");
+		for(int ply = 0; ply <= maxPly; ply++) {
+			long cutoffs = betaCutoffs[ply] + alphaCutoffs[ply];
+			if(ply > 0) {
+				json.append(',');
+			}
+			json.append("{\"ply\":").append(ply);
+			json.append(",\"nodes\":").append(nodes[ply]);
+			json.append(",\"leaves\":").append(leaves[ply]);
+			json.append(",\"expanded\":").append(expanded[ply]);
+			json.append(",\"branching\":").append(ratio(children[ply], expanded[ply]));
+			json.append(",\"effectiveBranching\":").append(ply < maxPly ? ratio(nodes[ply + 1], nodes[ply]) : 0);
+			json.append(",\"betaCutoffs\":").append(betaCutoffs[ply]);
+			json.append(",\"alphaCutoffs\":").append(alphaCutoffs[ply]);
+			json.append(",\"firstMoveCutoffRate\":").append(ratio(firstMoveCutoffs[ply], cutoffs));
+			json.append(",\"meanCutoffIndex\":").append(ratio(cutoffIndexSum[ply], cutoffs));
+			json.append('}');
+		}
+		json.append("]}");
+		return json.toString();
+	}
+
+	private static double ratio(long numerator, long denominator) {
+		return denominator == 0 ? 0 : (double) numerator / denominator;
+	}
+}
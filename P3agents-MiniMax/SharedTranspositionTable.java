@@ -0,0 +1,151 @@
+package edu.cwru.sepia.agent.minimax;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A transposition table outside the Java heap, shared by every MinimaxAlphaBeta in the JVM that asks for it,
+ * and optionally mapped to a file so that it also outlives the JVM.
+ *
+ * The table is an array of buckets of two slots: the first keeps the deepest entry of its index, the second
+ * the most recent one. A slot is three longs: the key XORed with the other two, the value (the bits of a
+ * double) and the meta word (depth, bound and a used flag). Slots are read and written without locks, one long
+ * at a time, so a reader may see the words of two different writes. The XOR detects it: the stored key only
+ * matches the probed key if all three words come from the same write, and any other read is a miss.
+ *
+ * Keys are 64 bit hashes of the position and of the map, see OpeningBook, so agents on different maps do not
+ * see each other's entries. File layout: the magic number and the bucket count, then the buckets.
+ */
+public final class SharedTranspositionTable {
+
+	private static final long MAGIC = 0x5354543100000000L;
+	private static final int HEADER_BYTES = 16;
+	private static final int SLOT_BYTES = 24;
+	private static final int BUCKET_BYTES = 2 * SLOT_BYTES;
+
+	/*
+	 * Meta word: depth in the low 16 bits, the caller's bound code in the next 8, then the used flag, so that
+	 * a zeroed slot never verifies
+	 */
+	private static final long DEPTH_MASK = 0xFFFF;
+	private static final int BOUND_SHIFT = 16;
+	private static final long BOUND_MASK = 0xFF;
+	private static final long USED = 1L << 24;
+
+	private static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+
+	/*
+	 * One table per file, and one for all agents without a file, created by the first agent that asks
+	 */
+	private static final Map<String, SharedTranspositionTable> tables = new HashMap<>();
+
+	private final ByteBuffer buffer;
+	private final long bucketMask;
+
+	/**
+	 * The result of a probe: the depth the position was searched to, the bound code and the value
+	 */
+	public static final class Probe {
+		public int depth;
+		public int bound;
+		public double value;
+	}
+
+	private SharedTranspositionTable(ByteBuffer buffer, long buckets) {
+		this.buffer = buffer;
+		this.bucketMask = buckets - 1;
+	}
+
+	/**
+	 * The table shared by all callers with the same file, or with no file when file is null. Its size is the
+	 * largest power of two number of buckets that fits in the given megabytes, and is fixed by the first call.
+	 * A file that does not hold a table of that size is cleared
+	 */
+	public static synchronized SharedTranspositionTable shared(int megabytes, Path file) throws IOException {
+		String name = file == null ? "" : file.toAbsolutePath().toString();
+		SharedTranspositionTable table = tables.get(name);
+		if(table == null) {
+			long buckets = Long.highestOneBit(Math.max(1, (long) megabytes * (1 << 20) / BUCKET_BYTES));
+			long bytes = HEADER_BYTES + buckets * BUCKET_BYTES;
+			if(bytes > Integer.MAX_VALUE) {
+				throw new IllegalArgumentException("Shared transposition table too large: " + megabytes + " MB");
+			}
+			ByteBuffer buffer;
+			if(file == null) {
+				buffer = ByteBuffer.allocateDirect((int) bytes);
+			}
+			else {
+				try(FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+					buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, bytes);
+					if((long) LONGS.get(buffer, 0) != MAGIC || (long) LONGS.get(buffer, 8) != buckets) {
+						for(int offset = 0; offset < bytes; offset += 8) {
+							LONGS.set(buffer, offset, 0L);
+						}
+						LONGS.set(buffer, 0, MAGIC);
+						LONGS.set(buffer, 8, buckets);
+					}
+				}
+			}
+			table = new SharedTranspositionTable(buffer, buckets);
+			tables.put(name, table);
+		}
+		return table;
+	}
+
+	/**
+	 * Looks up a key, filling result and returning true if it is in the table
+	 */
+	public boolean probe(long key, Probe result) {
+		int bucket = bucketOffset(key);
+		return read(bucket, key, result) || read(bucket + SLOT_BYTES, key, result);
+	}
+
+	/**
+	 * Stores the value of a position searched to the given depth. The bound is the caller's code, 0 to 255
+	 */
+	public void store(long key, int depth, int bound, double value) {
+		int bucket = bucketOffset(key);
+		long meta = (depth & DEPTH_MASK) | ((bound & BOUND_MASK) << BOUND_SHIFT) | USED;
+		long storedMeta = (long) LONGS.getOpaque(buffer, bucket + 16);
+		long storedKey = (long) LONGS.getOpaque(buffer, bucket) ^ (long) LONGS.getOpaque(buffer, bucket + 8) ^ storedMeta;
+		//The deepest slot is replaced by a search at least as deep, or by anything for the same position
+		if((storedMeta & USED) == 0 || storedKey == key || depth >= (storedMeta & DEPTH_MASK)) {
+			write(bucket, key, meta, value);
+		}
+		else {
+			write(bucket + SLOT_BYTES, key, meta, value);
+		}
+	}
+
+	private int bucketOffset(long key) {
+		return HEADER_BYTES + (int) (key & bucketMask) * BUCKET_BYTES;
+	}
+
+	private boolean read(int slot, long key, Probe result) {
+		long check = (long) LONGS.getOpaque(buffer, slot);
+		long valueBits = (long) LONGS.getOpaque(buffer, slot + 8);
+		long meta = (long) LONGS.getOpaque(buffer, slot + 16);
+		if((meta & USED) == 0 || (check ^ valueBits ^ meta) != key) {
+			return false;
+		}
+		result.depth = (int) (meta & DEPTH_MASK);
+		result.bound = (int) ((meta >>> BOUND_SHIFT) & BOUND_MASK);
+		result.value = Double.longBitsToDouble(valueBits);
+		return true;
+	}
+
+	private void write(int slot, long key, long meta, double value) {
+		long valueBits = Double.doubleToRawLongBits(value);
+		LONGS.setOpaque(buffer, slot + 8, valueBits);
+		LONGS.setOpaque(buffer, slot + 16, meta);
+		LONGS.setOpaque(buffer, slot, key ^ valueBits ^ meta);
+	}
+}
@@ -0,0 +1,175 @@
+package edu.cwru.sepia.agent.minimax;
+
+import edu.cwru.sepia.environment.model.state.ResourceNode.ResourceView;
+import edu.cwru.sepia.environment.model.state.State;
+import edu.cwru.sepia.environment.model.state.Unit.UnitView;
+import edu.cwru.sepia.environment.model.state.UnitTemplate.UnitTemplateView;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Appends the content of the state views an agent is given to a binary trace, so that the turns can be fed
+ * to the agent again offline by TraceReplayer.
+ *
+ * The trace is a sequence of records, each starting with a tag byte:
+ *   EPISODE   starts an episode: the map size and the number of the player whose views are recorded.
+ *             Templates and resources of earlier episodes are forgotten
+ *   TEMPLATE  a unit template seen for the first time in the episode: index, player, name, range, basic
+ *             attack and base health
+ *   RESOURCES the resource nodes, written again only when they differ from the last ones: id, type, x, y and
+ *             amount remaining
+ *   TURN      one state view: the turn number, then each unit as id, template index, x, y and HP
+ *   TERMINAL  the state view of the end of the episode, in the same format as TURN
+ * Records are only appended, so a trace can collect the episodes of several runs. Every view is flushed as
+ * soon as it is recorded, so a game that is aborted keeps all the turns it played.
+ */
+public class TraceRecorder implements Closeable {
+
+	public static final int MAGIC = 0x54524332;
+	public static final byte EPISODE = 1;
+	public static final byte TEMPLATE = 2;
+	public static final byte RESOURCES = 3;
+	public static final byte TURN = 4;
+	public static final byte TERMINAL = 5;
+
+	private final DataOutputStream out;
+
+	/*
+	 * Templates and resources already written in the current episode
+	 */
+	private final Map<String, Integer> templates = new HashMap<>();
+	private List<int[]> resources = new ArrayList<>();
+
+	/**
+	 * Opens a trace for appending, writing the header if the file is new
+	 */
+	public TraceRecorder(Path file) throws IOException {
+		boolean isNew = !Files.exists(file) || Files.size(file) == 0;
+		out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file,
+				StandardOpenOption.CREATE, StandardOpenOption.APPEND)));
+		if(isNew) {
+			out.writeInt(MAGIC);
+		}
+	}
+
+	/**
+	 * Starts an episode of the given player, whose views are recorded until the next episode
+	 */
+	public void beginEpisode(State.StateView state, int player) throws IOException {
+		templates.clear();
+		resources = new ArrayList<>();
+		out.writeByte(EPISODE);
+		out.writeShort(state.getXExtent());
+		out.writeShort(state.getYExtent());
+		out.writeInt(player);
+	}
+
+	/**
+	 * Appends one state view given to initialStep or middleStep
+	 */
+	public void record(State.StateView state) throws IOException {
+		write(TURN, state);
+		out.flush();
+	}
+
+	/**
+	 * Appends the state view given to terminalStep
+	 */
+	public void recordTerminal(State.StateView state) throws IOException {
+		write(TERMINAL, state);
+		out.flush();
+	}
+
+	/*
+	 * Writes any new template, the resources if they changed, then the units
+	 */
+	private void write(byte tag, State.StateView state) throws IOException {
+		List<int[]> units = new ArrayList<>();
+		for(Integer player : state.getPlayerNumbers()) {
+			for(UnitView unit : state.getUnits(player)) {
+				int template = templateIndex(player, unit.getTemplateView());
+				units.add(new int[] {unit.getID(), template, unit.getXPosition(), unit.getYPosition(), unit.getHP()});
+			}
+		}
+
+		List<int[]> currentResources = new ArrayList<>();
+		for(ResourceView resource : state.getAllResourceNodes()) {
+			currentResources.add(new int[] {resource.getID(), resource.getType().ordinal(), resource.getXPosition(), resource.getYPosition(),
+					resource.getAmountRemaining()});
+		}
+		if(!sameResources(currentResources)) {
+			resources = currentResources;
+			out.writeByte(RESOURCES);
+			out.writeInt(resources.size());
+			for(int[] resource : resources) {
+				out.writeInt(resource[0]);
+				out.writeByte(resource[1]);
+				out.writeShort(resource[2]);
+				out.writeShort(resource[3]);
+				out.writeInt(resource[4]);
+			}
+		}
+
+		out.writeByte(tag);
+		out.writeInt(state.getTurnNumber());
+		out.writeShort(units.size());
+		for(int[] unit : units) {
+			out.writeInt(unit[0]);
+			out.writeShort(unit[1]);
+			out.writeShort(unit[2]);
+			out.writeShort(unit[3]);
+			out.writeInt(unit[4]);
+		}
+	}
+
+	/*
+	 * Returns the index of a template, writing a TEMPLATE record the first time it is seen in the episode
+	 */
+	private int templateIndex(int player, UnitTemplateView template) throws IOException {
+		String key = player + ":" + template.getName() + ":" + template.getRange() + ":" + template.getBasicAttack() + ":" + template.getBaseHealth();
+		Integer index = templates.get(key);
+		if(index == null) {
+			index = templates.size();
+			templates.put(key, index);
+			out.writeByte(TEMPLATE);
+			out.writeShort(index);
+			out.writeInt(player);
+			out.writeUTF(template.getName());
+			out.writeInt(template.getRange());
+			out.writeInt(template.getBasicAttack());
+			out.writeInt(template.getBaseHealth());
+		}
+		return index;
+	}
+
+	private boolean sameResources(List<int[]> currentResources) {
+		if(currentResources.size() != resources.size()) {
+			return false;
+		}
+		for(int i = 0; i < resources.size(); i++) {
+			int[] resource = resources.get(i);
+			int[] current = currentResources.get(i);
+			for(int field = 0; field < resource.length; field++) {
+				if(resource[field] != current[field]) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public void close() throws IOException {
+		out.close();
+	}
+}
@@ -0,0 +1,238 @@
+package edu.cwru.sepia.agent.minimax;
+
+import edu.cwru.sepia.agent.Agent;
+import edu.cwru.sepia.agent.grid.Options;
+import edu.cwru.sepia.environment.model.state.ResourceNode;
+import edu.cwru.sepia.environment.model.state.State;
+import edu.cwru.sepia.environment.model.state.Unit;
+import edu.cwru.sepia.environment.model.state.UnitTemplate;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Feeds the state views of a trace written by TraceRecorder back to an agent offline, timing every turn.
+ *
+ * Each episode is replayed from its first turn, since the agents keep state between turns: initialStep,
+ * then middleStep for every later turn, then terminalStep. The states are rebuilt before the replay starts,
+ * so only the agent is timed. With repeat=N every episode is replayed N times with new agents and the
+ * fastest time of each turn is kept.
+ *
+ * Prints one line per turn: episode, turn number, nanoseconds in initialStep or middleStep.
+ *
+ * Usage: TraceReplayer name=value ...
+ *   trace=file                 the trace to replay
+ *   agent=minimax|astar|class  the agent to replay (default minimax)
+ *   agentArgs="4 maxActions=3" the agent arguments, space separated (default "2")
+ *   episode=N                  only replay this episode, counted from 0 (default: all)
+ *   repeat=N                   replays of each episode (default 1)
+ */
+public class TraceReplayer {
+
+	/**
+	 * The state views of one recorded episode, the last one being the terminal state if it was recorded, and
+	 * the player they were recorded for
+	 */
+	public static class Episode {
+		public int player;
+		public final List<State.StateView> views = new ArrayList<>();
+		public final List<Integer> turns = new ArrayList<>();
+		public State.StateView terminal;
+	}
+
+	public static void main(String[] args) throws IOException {
+		Map<String, String> options = Options.parse(args, 0);
+		if(!options.containsKey("trace")) {
+			System.err.println("You must specify the trace, e.g. trace=trace.bin");
+			System.exit(1);
+		}
+		String agent = options.getOrDefault("agent", "minimax");
+		String[] agentArgs = options.getOrDefault("agentArgs", "2").trim().split("\\s+");
+		int repeat = Integer.parseInt(options.getOrDefault("repeat", "1"));
+		List<Episode> episodes = read(Paths.get(options.get("trace")));
+		int first = options.containsKey("episode") ? Integer.parseInt(options.get("episode")) : 0;
+		int last = options.containsKey("episode") ? first : episodes.size() - 1;
+
+		for(int e = first; e <= last; e++) {
+			Episode episode = episodes.get(e);
+			long[] best = new long[episode.views.size()];
+			Arrays.fill(best, Long.MAX_VALUE);
+			for(int r = 0; r < repeat; r++) {
+				long[] times = replay(episode, createAgent(agent, episode.player, agentArgs));
+				for(int turn = 0; turn < best.length; turn++) {
+					best[turn] = Math.min(best[turn], times[turn]);
+				}
+			}
+			for(int turn = 0; turn < best.length; turn++) {
+				System.out.println(e + "\t" + episode.turns.get(turn) + "\t" + best[turn]);
+			}
+		}
+	}
+
+	private static Agent createAgent(String agent, int player, String[] agentArgs) {
+		switch(agent) {
+			case "minimax": return new MinimaxAlphaBeta(player, agentArgs);
+			case "astar": return TracingAgent.createAgent("edu.cwru.sepia.agent.AstarAgent", player, agentArgs);
+			default: return TracingAgent.createAgent(agent, player, agentArgs);
+		}
+	}
+
+	/**
+	 * Replays one episode and returns the nanoseconds of each turn. The agents print every step, so their
+	 * output is silenced during the replay
+	 */
+	public static long[] replay(Episode episode, Agent agent) {
+		long[] times = new long[episode.views.size()];
+		PrintStream stdout = System.out;
+		System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+		try {
+			for(int turn = 0; turn < times.length; turn++) {
+				State.StateView view = episode.views.get(turn);
+				long startTime = System.nanoTime();
+				if(turn == 0) {
+					agent.initialStep(view, null);
+				}
+				else {
+					agent.middleStep(view, null);
+				}
+				times[turn] = System.nanoTime() - startTime;
+			}
+			if(episode.terminal != null) {
+				agent.terminalStep(episode.terminal, null);
+			}
+		}
+		finally {
+			System.setOut(stdout);
+		}
+		return times;
+	}
+
+	/**
+	 * Reads every episode of a trace and rebuilds its state views
+	 */
+	public static List<Episode> read(Path file) throws IOException {
+		List<Episode> episodes = new ArrayList<>();
+		try(DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+			if(in.readInt() != TraceRecorder.MAGIC) {
+				throw new IOException("Not a trace: " + file);
+			}
+			Episode episode = null;
+			int width = 0;
+			int height = 0;
+			int viewPlayer = 0;
+			List<UnitTemplate> templates = new ArrayList<>();
+			List<Integer> templatePlayers = new ArrayList<>();
+			List<int[]> resources = new ArrayList<>();
+			while(true) {
+				int tag;
+				try {
+					tag = in.readByte();
+				}
+				catch(EOFException e) {
+					break;
+				}
+				switch(tag) {
+					case TraceRecorder.EPISODE:
+						episode = new Episode();
+						episodes.add(episode);
+						width = in.readShort();
+						height = in.readShort();
+						viewPlayer = in.readInt();
+						episode.player = viewPlayer;
+						templates = new ArrayList<>();
+						templatePlayers = new ArrayList<>();
+						resources = new ArrayList<>();
+						break;
+					case TraceRecorder.TEMPLATE:
+						int index = in.readShort();
+						UnitTemplate template = new UnitTemplate(index);
+						int player = in.readInt();
+						template.setPlayer(player);
+						templatePlayers.add(player);
+						template.setName(in.readUTF());
+						template.setRange(in.readInt());
+						template.setBasicAttack(in.readInt());
+						template.setBaseHealth(in.readInt());
+						templates.add(template);
+						break;
+					case TraceRecorder.RESOURCES:
+						resources = new ArrayList<>();
+						int resourceCount = in.readInt();
+						for(int i = 0; i < resourceCount; i++) {
+							resources.add(new int[] {in.readInt(), in.readByte(), in.readShort(), in.readShort(), in.readInt()});
+						}
+						break;
+					case TraceRecorder.TURN:
+					case TraceRecorder.TERMINAL:
+						if(episode == null) {
+							throw new IOException("Turn recorded before the first episode");
+						}
+						int turn = in.readInt();
+						State.StateView view = readView(in, width, height, turn, viewPlayer, templates, templatePlayers, resources);
+						if(tag == TraceRecorder.TURN) {
+							episode.views.add(view);
+							episode.turns.add(turn);
+						}
+						else {
+							episode.terminal = view;
+						}
+						break;
+					default:
+						throw new IOException("Unknown trace record " + tag);
+				}
+			}
+		}
+		return episodes;
+	}
+
+	/*
+	 * Reads the units of a TURN or TERMINAL record and builds the state with the current templates and resources,
+	 * as seen by the recorded player
+	 */
+	private static State.StateView readView(DataInputStream in, int width, int height, int turn, int viewPlayer,
+			List<UnitTemplate> templates, List<Integer> templatePlayers, List<int[]> resources) throws IOException {
+		State.StateBuilder builder = new State.StateBuilder();
+		builder.setSize(width, height);
+		builder.setTurn(turn);
+		Set<Integer> players = new TreeSet<>();
+		players.add(viewPlayer);
+		players.addAll(templatePlayers);
+		for(int player : players) {
+			builder.addPlayer(player);
+		}
+		for(UnitTemplate template : templates) {
+			builder.addTemplate(template);
+		}
+		int unitCount = in.readShort();
+		List<Unit> units = new ArrayList<>();
+		List<int[]> positions = new ArrayList<>();
+		for(int i = 0; i < unitCount; i++) {
+			int id = in.readInt();
+			int template = in.readShort();
+			Unit unit = new Unit(templates.get(template), id);
+			positions.add(new int[] {in.readShort(), in.readShort()});
+			unit.setHP(in.readInt());
+			units.add(unit);
+		}
+		for(int[] resource : resources) {
+			builder.addResource(new ResourceNode(ResourceNode.Type.values()[resource[1]], resource[2], resource[3], resource[4], resource[0]));
+		}
+		for(int i = 0; i < units.size(); i++) {
+			builder.addUnit(units.get(i), positions.get(i)[0], positions.get(i)[1]);
+		}
+		return builder.build().getView(viewPlayer);
+	}
+}
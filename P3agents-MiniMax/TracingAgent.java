@@ -0,0 +1,110 @@
+package edu.cwru.sepia.agent.minimax;
+
+import edu.cwru.sepia.action.Action;
+import edu.cwru.sepia.agent.Agent;
+import edu.cwru.sepia.environment.model.history.History;
+import edu.cwru.sepia.environment.model.state.State;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Plays another agent unchanged and records every state view it is given with a TraceRecorder.
+ *
+ * Arguments: the trace file, the class name of the agent to play, then that agent's own arguments, e.g.
+ *   trace.bin edu.cwru.sepia.agent.minimax.MinimaxAlphaBeta 4 maxActions=3
+ * The agent is created with its (int, String[]) constructor if it has one, its (int) constructor otherwise.
+ */
+public class TracingAgent extends Agent {
+
+	private static final long serialVersionUID = 1L;
+
+	private final transient Agent agent;
+	private final transient TraceRecorder recorder;
+
+	public TracingAgent(int playernum, String[] args) {
+		super(playernum);
+
+		if(args.length < 2) {
+			System.err.println("You must specify the trace file and the agent class");
+			System.exit(1);
+		}
+		agent = createAgent(args[1], playernum, Arrays.copyOfRange(args, 2, args.length));
+		try {
+			recorder = new TraceRecorder(Paths.get(args[0]));
+		}
+		catch(IOException e) {
+			throw new RuntimeException("Could not open the trace " + args[0], e);
+		}
+	}
+
+	/**
+	 * Creates an agent by class name, with its (int, String[]) constructor or its (int) constructor
+	 */
+	public static Agent createAgent(String className, int playernum, String[] args) {
+		try {
+			Class<? extends Agent> agentClass = Class.forName(className).asSubclass(Agent.class);
+			try {
+				return agentClass.getConstructor(int.class, String[].class).newInstance(playernum, args);
+			}
+			catch(NoSuchMethodException e) {
+				return agentClass.getConstructor(int.class).newInstance(playernum);
+			}
+		}
+		catch(ClassNotFoundException | NoSuchMethodException | InstantiationException | IllegalAccessException e) {
+			throw new IllegalArgumentException("Cannot create the agent " + className, e);
+		}
+		catch(InvocationTargetException e) {
+			throw new RuntimeException(e.getCause());
+		}
+	}
+
+	@Override
+	public Map<Integer, Action> initialStep(State.StateView newstate, History.HistoryView statehistory) {
+		try {
+			recorder.beginEpisode(newstate, playernum);
+			recorder.record(newstate);
+		}
+		catch(IOException e) {
+			System.err.println("Could not write the trace: " + e.getMessage());
+		}
+		return agent.initialStep(newstate, statehistory);
+	}
+
+	@Override
+	public Map<Integer, Action> middleStep(State.StateView newstate, History.HistoryView statehistory) {
+		try {
+			recorder.record(newstate);
+		}
+		catch(IOException e) {
+			System.err.println("Could not write the trace: " + e.getMessage());
+		}
+		return agent.middleStep(newstate, statehistory);
+	}
+
+	@Override
+	public void terminalStep(State.StateView newstate, History.HistoryView statehistory) {
+		try {
+			recorder.recordTerminal(newstate);
+		}
+		catch(IOException e) {
+			System.err.println("Could not write the trace: " + e.getMessage());
+		}
+		agent.terminalStep(newstate, statehistory);
+	}
+
+	@Override
+	public void savePlayerData(OutputStream os) {
+		agent.savePlayerData(os);
+	}
+
+	@Override
+	public void loadPlayerData(InputStream is) {
+		agent.loadPlayerData(is);
+	}
+}
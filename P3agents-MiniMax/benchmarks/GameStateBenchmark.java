@@ -0,0 +1,84 @@
+package edu.cwru.sepia.agent.minimax;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JMH benchmarks of move generation and evaluation over positions of the PositionCorpus.
+ *
+ * Every call works on a copy of the position without its caches, so each one generates the children or
+ * computes the utility again. Run with the GC profiler to get the allocation per call
+ * (gc.alloc.rate.norm), e.g.
+ *   java -jar benchmarks.jar GameStateBenchmark -prof gc
+ * with jmh-core and jmh-generator-annprocess on the class path next to SEPIA and the agent classes.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GameStateBenchmark {
+
+	@Param({"10x10-1v1-t0", "20x15-2v2-t0", "20x15-2v2-t25", "32x32-2v2-t10", "20x15-4v4-t10"})
+	public String position;
+
+	private GameState root;
+
+	@Setup
+	public void setup() {
+		root = PositionCorpus.state(position);
+	}
+
+	@Benchmark
+	public List<GameStateChild> getChildren() {
+		return new GameState(root).getChildren();
+	}
+
+	/*
+	 * Utility of a state with no parent terms, every footman term is computed
+	 */
+	@Benchmark
+	public double getUtility() {
+		return new GameState(root).getUtility();
+	}
+
+	/*
+	 * Utilities of the children one by one, derived incrementally from the root's terms
+	 */
+	@Benchmark
+	public void childUtilities(Blackhole blackhole) {
+		GameState state = new GameState(root);
+		state.getUtility();
+		for(GameStateChild child : state.getChildren()) {
+			blackhole.consume(child.state.getUtility());
+		}
+	}
+
+	/*
+	 * Utilities of the children through LeafBatch, as the search orders them
+	 */
+	@Benchmark
+	public void childUtilitiesBatch(Blackhole blackhole) {
+		GameState state = new GameState(root);
+		state.getUtility();
+		List<GameStateChild> children = state.getChildren();
+		LeafBatch.evaluate(children);
+		for(GameStateChild child : children) {
+			blackhole.consume(child.state.getUtility());
+		}
+	}
+}
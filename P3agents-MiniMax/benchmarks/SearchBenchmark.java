@@ -0,0 +1,53 @@
+package edu.cwru.sepia.agent.minimax;
+
+import edu.cwru.sepia.action.Action;
+import edu.cwru.sepia.environment.model.state.State;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JMH benchmark of a full MinimaxAlphaBeta turn from positions of the PositionCorpus. Each call uses a new
+ * agent, so no tables, retained tree or principal variation carry over between calls. See GameStateBenchmark
+ * for how to run it.
+ */
+@org.openjdk.jmh.annotations.State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SearchBenchmark {
+
+	@Param({"10x10-1v1-t0", "20x15-2v2-t0", "20x15-2v2-t25", "32x32-2v2-t10"})
+	public String position;
+
+	@Param({"2", "4"})
+	public String plys;
+
+	@Param({""})
+	public String agentArgs;
+
+	private State.StateView view;
+
+	@Setup
+	public void setup() {
+		view = PositionCorpus.view(position);
+	}
+
+	@Benchmark
+	public Map<Integer, Action> middleStep() {
+		String[] args = (plys + " " + agentArgs).trim().split("\\s+");
+		return new MinimaxAlphaBeta(0, args).middleStep(view, null);
+	}
+}
@@ -0,0 +1,147 @@
+package edu.cwru.sepia.agent.grid;
+
+import java.util.Arrays;
+
+/**
+ * Finds the cheapest position from which to attack any of several targets, in one search.
+ *
+ * Every cell within attack range of a target is a goal. Range is measured per target, in the Chebyshev distance
+ * or, for targets that cannot be hit diagonally such as units under melee attack, in the Manhattan distance.
+ * Reaching a goal costs the number of steps to it plus the weight of its target, e.g. a multiple of the target's
+ * HP so that weak targets are preferred, or 0 to go for the closest one. The search is a breadth first search
+ * from the start that stops once no deeper cell can beat the cheapest goal already reached, so with several
+ * targets it costs one search instead of one per target.
+ *
+ * The obstacles may be a different layer on every call. Not safe to share between threads: the scratch
+ * arrays are reused from one search to the next.
+ */
+public final class AttackPositionSearch {
+
+	/**
+	 * The cheapest attack position found by a search
+	 */
+	public static final class Result {
+		/**
+		 * Index of the chosen target in the targets given to the search
+		 */
+		public final int target;
+		/**
+		 * The cell to attack from, the last cell of the path
+		 */
+		public final int cell;
+		public final int steps;
+		public final double cost;
+		/**
+		 * The cells to move through in order, the start excluded. Empty if the start is in range already
+		 */
+		public final int[] path;
+
+		private Result(int target, int cell, int steps, double cost, int[] path) {
+			this.target = target;
+			this.cell = cell;
+			this.steps = steps;
+			this.cost = cost;
+			this.path = path;
+		}
+	}
+
+	private final Grid grid;
+	private final int directions;
+	private final int range;
+
+	/*
+	 * Scratch: the BFS distance and parent of every cell, and for every goal cell its cheapest target
+	 */
+	private final int[] distance;
+	private final int[] parent;
+	private final int[] queue;
+	private final int[] goalTarget;
+	private final double[] goalWeight;
+
+	/**
+	 * @param diagonal true to move in 8 directions, false for the 4 cardinal directions
+	 * @param range the attack range of the attacker
+	 */
+	public AttackPositionSearch(Grid grid, boolean diagonal, int range) {
+		this.grid = grid;
+		this.directions = diagonal ? Grid.DIRECTIONS_8 : Grid.DIRECTIONS_4;
+		this.range = range;
+		this.distance = new int[grid.size()];
+		this.parent = new int[grid.size()];
+		this.queue = new int[grid.size()];
+		this.goalTarget = new int[grid.size()];
+		this.goalWeight = new double[grid.size()];
+	}
+
+	/**
+	 * The cheapest attack position over all the targets, or null if none can be reached.
+	 *
+	 * @param start the cell of the attacker
+	 * @param obstacles the cells the attacker may not enter, the start excepted. They should include the targets
+	 * @param targets the cells of the targets
+	 * @param diagonalReach for each target, true if it is in range of cells within Chebyshev distance range,
+	 *                      false if only of cells within Manhattan distance range
+	 * @param weights the extra cost of attacking each target, not negative
+	 */
+	public Result search(int start, CellLayer obstacles, int[] targets, boolean[] diagonalReach, double[] weights) {
+		Arrays.fill(goalTarget, Grid.NONE);
+		double minimumWeight = Double.POSITIVE_INFINITY;
+		for(int target = 0; target < targets.length; target++) {
+			/*
+			 * Both distances are symmetric: the cells a target can be hit from are the cells within range of it
+			 */
+			int x = grid.x(targets[target]);
+			int y = grid.y(targets[target]);
+			for(int goalY = Math.max(0, y - range); goalY <= Math.min(grid.getHeight() - 1, y + range); goalY++) {
+				for(int goalX = Math.max(0, x - range); goalX <= Math.min(grid.getWidth() - 1, x + range); goalX++) {
+					if(!diagonalReach[target] && Math.abs(goalX - x) + Math.abs(goalY - y) > range) {
+						continue;
+					}
+					int cell = grid.cell(goalX, goalY);
+					if(goalTarget[cell] == Grid.NONE || weights[target] < goalWeight[cell]) {
+						goalTarget[cell] = target;
+						goalWeight[cell] = weights[target];
+					}
+				}
+			}
+			minimumWeight = Math.min(minimumWeight, weights[target]);
+		}
+
+		Arrays.fill(distance, DistanceOracle.UNREACHABLE);
+		int head = 0;
+		int tail = 0;
+		queue[tail++] = start;
+		distance[start] = 0;
+		parent[start] = Grid.NONE;
+		int bestCell = Grid.NONE;
+		double bestCost = Double.POSITIVE_INFINITY;
+		while(head < tail) {
+			int cell = queue[head++];
+			//Cells come out in order of distance, so no later goal can cost less than this
+			if(distance[cell] + minimumWeight >= bestCost) {
+				break;
+			}
+			if(goalTarget[cell] != Grid.NONE && distance[cell] + goalWeight[cell] < bestCost) {
+				bestCell = cell;
+				bestCost = distance[cell] + goalWeight[cell];
+			}
+			for(int d = 0; d < directions; d++) {
+				int neighbor = grid.neighbor8(cell, d);
+				if(neighbor != Grid.NONE && distance[neighbor] == DistanceOracle.UNREACHABLE && !obstacles.get(neighbor)) {
+					distance[neighbor] = distance[cell] + 1;
+					parent[neighbor] = cell;
+					queue[tail++] = neighbor;
+				}
+			}
+		}
+		if(bestCell == Grid.NONE) {
+			return null;
+		}
+
+		int[] path = new int[distance[bestCell]];
+		for(int cell = bestCell, i = path.length - 1; i >= 0; cell = parent[cell], i--) {
+			path[i] = cell;
+		}
+		return new Result(goalTarget[bestCell], bestCell, distance[bestCell], bestCost, path);
+	}
+}
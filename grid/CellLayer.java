@@ -0,0 +1,75 @@
+package edu.cwru.sepia.agent.grid;
+
+import java.util.Arrays;
+
+/**
+ * A set of cells of a Grid stored as one bit per cell, e.g. the trees of a map or the cells occupied by units
+ */
+public final class CellLayer {
+
+	private final long[] words;
+
+	public CellLayer(Grid grid) {
+		this.words = new long[(grid.size() + 63) >>> 6];
+	}
+
+	public CellLayer(CellLayer other) {
+		this.words = other.words.clone();
+	}
+
+	public boolean get(int cell) {
+		return (words[cell >>> 6] & (1L << cell)) != 0;
+	}
+
+	public void set(int cell) {
+		words[cell >>> 6] |= 1L << cell;
+	}
+
+	public void clear(int cell) {
+		words[cell >>> 6] &= ~(1L << cell);
+	}
+
+	public void clearAll() {
+		Arrays.fill(words, 0);
+	}
+
+	/**
+	 * Makes this layer hold the same cells as another layer of the same grid
+	 */
+	public void copyFrom(CellLayer other) {
+		System.arraycopy(other.words, 0, words, 0, words.length);
+	}
+
+	/**
+	 * Adds the cells of another layer of the same grid
+	 */
+	public void or(CellLayer other) {
+		for(int i = 0; i < words.length; i++) {
+			words[i] |= other.words[i];
+		}
+	}
+
+	public int cardinality() {
+		int count = 0;
+		for(long word : words) {
+			count += Long.bitCount(word);
+		}
+		return count;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj)
+			return true;
+		if (obj == null)
+			return false;
+		if (getClass() != obj.getClass())
+			return false;
+		return Arrays.equals(words, ((CellLayer) obj).words);
+	}
+
+	@Override
+	public int hashCode() {
+		return Arrays.hashCode(words);
+	}
+}
@@ -0,0 +1,87 @@
+package edu.cwru.sepia.agent.grid;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Shortest path lengths around the static obstacles of a map, in the 4- or the 8-neighbourhood.
+ *
+ * The first query towards a target cell runs one breadth first search from that target over the whole map and
+ * caches the distance of every cell to it, so later queries towards the same target are a single array read.
+ * The obstacles must not change once the oracle is built. Safe to share between threads: a distance table is
+ * computed in full before it is published.
+ */
+public final class DistanceOracle {
+
+	/**
+	 * Distance to a cell that cannot be reached
+	 */
+	public static final int UNREACHABLE = Integer.MAX_VALUE;
+
+	private final Grid grid;
+	private final CellLayer obstacles;
+	private final int directions;
+	private final AtomicReferenceArray<int[]> distances;
+
+	/**
+	 * @param diagonal true to move in 8 directions, false for the 4 cardinal directions
+	 */
+	public DistanceOracle(Grid grid, CellLayer obstacles, boolean diagonal) {
+		this.grid = grid;
+		this.obstacles = new CellLayer(obstacles);
+		this.directions = diagonal ? Grid.DIRECTIONS_8 : Grid.DIRECTIONS_4;
+		this.distances = new AtomicReferenceArray<>(grid.size());
+	}
+
+	/**
+	 * Number of steps from one cell to another without entering an obstacle, or UNREACHABLE.
+	 * The start cell itself may be an obstacle
+	 */
+	public int distance(int from, int to) {
+		return distancesTo(to)[from];
+	}
+
+	/**
+	 * The distance of every cell to the target, indexed by cell. The array is shared and must not be modified
+	 */
+	public int[] distancesTo(int target) {
+		int[] table = distances.get(target);
+		if(table == null) {
+			table = search(target);
+			distances.set(target, table);
+		}
+		return table;
+	}
+
+	/*
+	 * Breadth first search from the target. Paths are reversible, so the distance from the target to a cell
+	 * is the distance from that cell to the target. A cell that is an obstacle gets the distance of its path
+	 * out of it but is never expanded
+	 */
+	private int[] search(int target) {
+		int[] table = new int[grid.size()];
+		Arrays.fill(table, UNREACHABLE);
+		if(obstacles.get(target)) {
+			return table;
+		}
+		int[] queue = new int[grid.size()];
+		int head = 0;
+		int tail = 0;
+		queue[tail++] = target;
+		table[target] = 0;
+		while(head < tail) {
+			int cell = queue[head++];
+			int next = table[cell] + 1;
+			for(int d = 0; d < directions; d++) {
+				int neighbor = grid.neighbor8(cell, d);
+				if(neighbor != Grid.NONE && table[neighbor] == UNREACHABLE) {
+					table[neighbor] = next;
+					if(!obstacles.get(neighbor)) {
+						queue[tail++] = neighbor;
+					}
+				}
+			}
+		}
+		return table;
+	}
+}
@@ -0,0 +1,113 @@
+package edu.cwru.sepia.agent.grid;
+
+/**
+ * Geometry of a rectangular SEPIA map, shared by the agents.
+ *
+ * A cell is a packed int id, y * width + x, so cells can index flat arrays and CellLayers directly.
+ * The neighbours of every cell are precomputed, so iterating over them allocates nothing and needs no
+ * bounds checks:
+ *
+ *   for(int d = 0; d < Grid.DIRECTIONS_4; d++) {
+ *       int next = grid.neighbor4(cell, d);
+ *       if(next != Grid.NONE) ...
+ *   }
+ *
+ * x grows to the east and y to the south, as in SEPIA.
+ */
+public final class Grid {
+
+	/**
+	 * The neighbour of a cell on the edge of the map, in a direction that leaves it
+	 */
+	public static final int NONE = -1;
+
+	/*
+	 * The cardinal directions N, E, S, W, then the diagonals NE, SE, SW, NW. The first DIRECTIONS_4 are the
+	 * 4-neighbourhood, all DIRECTIONS_8 the 8-neighbourhood
+	 */
+	public static final int DIRECTIONS_4 = 4;
+	public static final int DIRECTIONS_8 = 8;
+	public static final int[] DX = {0, 1, 0, -1, 1, 1, -1, -1};
+	public static final int[] DY = {-1, 0, 1, 0, -1, 1, 1, -1};
+
+	private final int width;
+	private final int height;
+	private final int[] neighbors;
+
+	public Grid(int width, int height) {
+		this.width = width;
+		this.height = height;
+		this.neighbors = new int[width * height * DIRECTIONS_8];
+		for(int y = 0; y < height; y++) {
+			for(int x = 0; x < width; x++) {
+				for(int d = 0; d < DIRECTIONS_8; d++) {
+					int nextX = x + DX[d];
+					int nextY = y + DY[d];
+					neighbors[cell(x, y) * DIRECTIONS_8 + d] = inBounds(nextX, nextY) ? cell(nextX, nextY) : NONE;
+				}
+			}
+		}
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	/**
+	 * Number of cells, the size of arrays indexed by cell
+	 */
+	public int size() {
+		return width * height;
+	}
+
+	public boolean inBounds(int x, int y) {
+		return x >= 0 && x < width && y >= 0 && y < height;
+	}
+
+	/**
+	 * The cell at (x, y), which must be in bounds
+	 */
+	public int cell(int x, int y) {
+		return y * width + x;
+	}
+
+	public int x(int cell) {
+		return cell % width;
+	}
+
+	public int y(int cell) {
+		return cell / width;
+	}
+
+	/**
+	 * The neighbour of a cell in one of the first DIRECTIONS_4 directions, or NONE
+	 */
+	public int neighbor4(int cell, int direction) {
+		return neighbors[cell * DIRECTIONS_8 + direction];
+	}
+
+	/**
+	 * The neighbour of a cell in one of the DIRECTIONS_8 directions, or NONE
+	 */
+	public int neighbor8(int cell, int direction) {
+		return neighbors[cell * DIRECTIONS_8 + direction];
+	}
+
+	/**
+	 * Number of steps between two cells moving in the 4 cardinal directions, ignoring obstacles
+	 */
+	public int manhattan(int cell1, int cell2) {
+		return Math.abs(x(cell1) - x(cell2)) + Math.abs(y(cell1) - y(cell2));
+	}
+
+	/**
+	 * Number of steps between two cells moving in the 8 directions, ignoring obstacles
+	 */
+	public int chebyshev(int cell1, int cell2) {
+		return Math.max(Math.abs(x(cell1) - x(cell2)), Math.abs(y(cell1) - y(cell2)));
+	}
+}
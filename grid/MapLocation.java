@@ -0,0 +1,50 @@
+package edu.cwru.sepia.agent.grid;
+
+/**
+ * A cell of a SEPIA map by its coordinates, shared by the agents.
+ *
+ * Locations are immutable values: two locations are equal if they are the same cell, so they can be used
+ * as keys and set elements. Use Grid.cell to index flat arrays and CellLayers with them.
+ */
+public final class MapLocation {
+
+	public final int x;
+	public final int y;
+
+	public MapLocation(int x, int y) {
+		this.x = x;
+		this.y = y;
+	}
+
+	public int getX() {
+		return x;
+	}
+
+	public int getY() {
+		return y;
+	}
+
+	@Override
+	public int hashCode() {
+		final int prime = 101;
+		int result = 1;
+		result = prime * result + x;
+		result = prime * result + y;
+		return result;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj)
+			return true;
+		if (!(obj instanceof MapLocation))
+			return false;
+		MapLocation other = (MapLocation) obj;
+		return x == other.x && y == other.y;
+	}
+
+	@Override
+	public String toString() {
+		return "(" + x + ", " + y + ")";
+	}
+}
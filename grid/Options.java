@@ -0,0 +1,32 @@
+package edu.cwru.sepia.agent.grid;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Parses the optional arguments of the agents and of the command line tools, shared so that they all read them
+ * the same way. Each argument is either a switch, e.g. "ponder", or a name=value pair, e.g. "maxActions=3".
+ * A switch maps to the empty string.
+ */
+public final class Options {
+
+	private Options() {
+	}
+
+	/**
+	 * The options among the arguments from index first on, by name
+	 */
+	public static Map<String, String> parse(String[] args, int first) {
+		Map<String, String> options = new HashMap<>();
+		for(int i = first; i < args.length; i++) {
+			int split = args[i].indexOf('=');
+			if(split == -1) {
+				options.put(args[i], "");
+			}
+			else {
+				options.put(args[i].substring(0, split), args[i].substring(split + 1));
+			}
+		}
+		return options;
+	}
+}
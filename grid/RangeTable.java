@@ -0,0 +1,51 @@
+package edu.cwru.sepia.agent.grid;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * For every cell of a Grid, the layer of cells within a fixed Chebyshev distance of it, i.e. the cells a unit
+ * with that attack range can hit from there. Layers are built on first use and shared, so they must not be
+ * modified. Safe to share between threads.
+ */
+public final class RangeTable {
+
+	private final Grid grid;
+	private final int range;
+	private final AtomicReferenceArray<CellLayer> reach;
+
+	public RangeTable(Grid grid, int range) {
+		this.grid = grid;
+		this.range = range;
+		this.reach = new AtomicReferenceArray<>(grid.size());
+	}
+
+	public int getRange() {
+		return range;
+	}
+
+	/**
+	 * The cells within range of the given cell, the cell itself included
+	 */
+	public CellLayer reach(int cell) {
+		CellLayer layer = reach.get(cell);
+		if(layer == null) {
+			layer = new CellLayer(grid);
+			int x = grid.x(cell);
+			int y = grid.y(cell);
+			for(int targetY = Math.max(0, y - range); targetY <= Math.min(grid.getHeight() - 1, y + range); targetY++) {
+				for(int targetX = Math.max(0, x - range); targetX <= Math.min(grid.getWidth() - 1, x + range); targetX++) {
+					layer.set(grid.cell(targetX, targetY));
+				}
+			}
+			reach.set(cell, layer);
+		}
+		return layer;
+	}
+
+	/**
+	 * True if the target cell is within range of the cell, a single bit test
+	 */
+	public boolean inRange(int cell, int target) {
+		return reach(cell).get(target);
+	}
+}
@@ -0,0 +1,133 @@
+package edu.cwru.sepia.agent.grid;
+
+import edu.cwru.sepia.environment.model.state.ResourceNode.ResourceView;
+import edu.cwru.sepia.environment.model.state.State;
+import edu.cwru.sepia.environment.model.state.Unit.UnitView;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Compares each state view an agent is given with the previous one and reports what changed to its listeners,
+ * so that caches can drop only the entries a change touches instead of rebuilding from the whole view.
+ *
+ * Units are compared by ID: a unit at another cell has moved, a unit with other HP has had its HP changed, and
+ * a unit that is gone or has no HP left has died. Units missing from the first snapshot are ignored. SEPIA
+ * never adds resources during an episode, so resources are only compared one by one when their number went
+ * down.
+ */
+public class WorldDiff {
+
+	/**
+	 * Receives the changes found by update, in the order units then resources. Every method does nothing by
+	 * default so a listener only implements the changes it cares about
+	 */
+	public interface Listener {
+		default void unitMoved(int unitID, int fromX, int fromY, int toX, int toY) {
+		}
+
+		default void hpChanged(int unitID, int previousHP, int hp) {
+		}
+
+		default void unitDied(int unitID, int x, int y) {
+		}
+
+		default void resourceRemoved(int resourceID, int x, int y) {
+		}
+	}
+
+	private final List<Listener> listeners = new ArrayList<>();
+
+	/*
+	 * The last snapshot: x, y and HP of each living unit, x and y of each resource, by ID
+	 */
+	private final Map<Integer, int[]> units = new HashMap<>();
+	private final Map<Integer, int[]> resources = new HashMap<>();
+	private boolean hasSnapshot = false;
+
+	public void addListener(Listener listener) {
+		listeners.add(listener);
+	}
+
+	/**
+	 * Forgets the snapshot, e.g. at the start of an episode. The next update only takes a snapshot
+	 */
+	public void reset() {
+		units.clear();
+		resources.clear();
+		hasSnapshot = false;
+	}
+
+	/**
+	 * Reports the changes from the last snapshot to the view, then makes the view the snapshot
+	 *
+	 * @return false if there was no snapshot to compare with, in which case nothing is reported
+	 */
+	public boolean update(State.StateView state) {
+		if(!hasSnapshot) {
+			for(UnitView unit : state.getAllUnits()) {
+				if(unit.getHP() > 0) {
+					units.put(unit.getID(), new int[] {unit.getXPosition(), unit.getYPosition(), unit.getHP()});
+				}
+			}
+			for(ResourceView resource : state.getAllResourceNodes()) {
+				resources.put(resource.getID(), new int[] {resource.getXPosition(), resource.getYPosition()});
+			}
+			hasSnapshot = true;
+			return false;
+		}
+
+		Set<Integer> seen = new HashSet<>();
+		for(UnitView unit : state.getAllUnits()) {
+			int[] previous = units.get(unit.getID());
+			if(previous == null || unit.getHP() <= 0) {
+				continue;
+			}
+			seen.add(unit.getID());
+			if(previous[0] != unit.getXPosition() || previous[1] != unit.getYPosition()) {
+				for(Listener listener : listeners) {
+					listener.unitMoved(unit.getID(), previous[0], previous[1], unit.getXPosition(), unit.getYPosition());
+				}
+				previous[0] = unit.getXPosition();
+				previous[1] = unit.getYPosition();
+			}
+			if(previous[2] != unit.getHP()) {
+				for(Listener listener : listeners) {
+					listener.hpChanged(unit.getID(), previous[2], unit.getHP());
+				}
+				previous[2] = unit.getHP();
+			}
+		}
+		if(seen.size() < units.size()) {
+			for(Iterator<Map.Entry<Integer, int[]>> it = units.entrySet().iterator(); it.hasNext();) {
+				Map.Entry<Integer, int[]> entry = it.next();
+				if(!seen.contains(entry.getKey())) {
+					for(Listener listener : listeners) {
+						listener.unitDied(entry.getKey(), entry.getValue()[0], entry.getValue()[1]);
+					}
+					it.remove();
+				}
+			}
+		}
+
+		List<Integer> resourceIDs = state.getAllResourceIds();
+		if(resourceIDs.size() < resources.size()) {
+			Set<Integer> remaining = new HashSet<>(resourceIDs);
+			for(Iterator<Map.Entry<Integer, int[]>> it = resources.entrySet().iterator(); it.hasNext();) {
+				Map.Entry<Integer, int[]> entry = it.next();
+				if(!remaining.contains(entry.getKey())) {
+					for(Listener listener : listeners) {
+						listener.resourceRemoved(entry.getKey(), entry.getValue()[0], entry.getValue()[1]);
+					}
+					it.remove();
+				}
+			}
+		}
+		return true;
+	}
+}